@@ -3,7 +3,9 @@ package org.gbif.content.crawl;
 import org.gbif.content.crawl.contentful.backup.ContentfulBackupCommand;
 import org.gbif.content.crawl.contentful.backup.ContentfulRestoreCommand;
 import org.gbif.content.crawl.contentful.crawl.ContentfulCrawlCommand;
+import org.gbif.content.crawl.es.ElasticSearchUtils;
 import org.gbif.content.crawl.mendeley.MendeleyCrawlCommand;
+import org.gbif.content.crawl.mendeley.MendeleyReenrichCommand;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -19,6 +21,7 @@ import picocli.CommandLine.Command;
         ContentfulRestoreCommand.class,
         ContentfulCrawlCommand.class,
         MendeleyCrawlCommand.class,
+        MendeleyReenrichCommand.class,
         CommandLine.HelpCommand.class
     }
 )
@@ -33,6 +36,7 @@ public class ContentCrawlerMain {
         }
         
         int exitCode = commandLine.execute(args);
+        ElasticSearchUtils.closeEsClients();
         System.exit(exitCode);
     }
 } 
\ No newline at end of file
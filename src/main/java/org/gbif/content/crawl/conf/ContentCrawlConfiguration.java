@@ -61,6 +61,23 @@ public class ContentCrawlConfiguration {
   @Nullable
   private ContentfulRestore contentfulRestore;
 
+  //Named index build profiles, referenced by IndexBuild.profile
+  private Map<String, IndexProfile> indexProfiles = new HashMap<>();
+
+  /**
+   * Gets the profile referenced by an index build, the default profile is used if none is referenced.
+   */
+  public IndexProfile getIndexProfile(IndexBuild indexBuild) {
+    if (indexBuild == null || indexBuild.getProfile() == null) {
+      return new IndexProfile();
+    }
+    IndexProfile indexProfile = indexProfiles.get(indexBuild.getProfile());
+    if (indexProfile == null) {
+      throw new IllegalArgumentException("Index profile [" + indexBuild.getProfile() + "] not found");
+    }
+    return indexProfile;
+  }
+
   /**
    * Configuration specific to interfacing to Mendeley.
    */
@@ -103,6 +120,25 @@ public class ContentCrawlConfiguration {
     private ElasticSearch datasetElasticSearch;
 
     private String datasetIndex = "dataset";
+
+    @Option(names = {"-contentRefreshInterval"}, description = "Minutes between reloads of the project and programme data, 0 disables it, defaulting to 60")
+    private int contentRefreshInterval = 60;
+
+    @Option(names = {"-retentionLedger"}, description = "File that keeps the DOIs of downloads already retained, defaulting to targetDir/retained_downloads.ledger")
+    private File retentionLedger;
+
+    @Option(names = {"-retentionMode"}, description = "How cited downloads are retained: API (GBIF API calls) or DATABASE (batched updates using dbConfig), defaulting to API")
+    private RetentionMode retentionMode = RetentionMode.API;
+
+    @Option(names = {"-handlerInboxSize"}, description = "Maximum number of in-flight responses per response handler, defaulting to 2")
+    private int handlerInboxSize = 2;
+  }
+
+  /**
+   * Mechanism used to mark cited downloads for indefinite retention.
+   */
+  public enum RetentionMode {
+    API, DATABASE
   }
 
   /**
@@ -122,6 +158,15 @@ public class ContentCrawlConfiguration {
 
     @Option(names = {"-connectionRequestTimeOut"}, description = "ConnectionRequestTimeOut time out")
     private int connectionRequestTimeOut = 120000;
+
+    @Option(names = {"-maxConnTotal"}, description = "Maximum number of pooled connections to the cluster")
+    private int maxConnTotal = 30;
+
+    @Option(names = {"-maxConnPerRoute"}, description = "Maximum number of pooled connections to a single node")
+    private int maxConnPerRoute = 10;
+
+    @Option(names = {"-compression"}, description = "Gzip request bodies and accept gzip responses, defaulting to true")
+    private boolean compression = true;
   }
 
 
@@ -187,6 +232,47 @@ public class ContentCrawlConfiguration {
             description = "Name of the project content type, it's handled specially during indexing projects")
     private String projectContentType = "Project";
 
+    @Option(
+            names = "-pageSize",
+            description = "Number of entries per Contentful page, it is reduced if a response is too big")
+    private int pageSize = 100;
+
+    @Option(
+            names = "-pageRequests",
+            description = "Maximum number of concurrent page requests to Contentful")
+    private int pageRequests = 4;
+
+    @Option(
+            names = "-dataDir",
+            description = "Directory that keeps the state of the crawler between runs")
+    @JsonDeserialize(using = PathDeserializer.class)
+    private Path dataDir;
+
+    @Option(
+            names = "-syncTokenFile",
+            description = "File that stores the Contentful sync token between incremental crawls, defaulting to dataDir/contentful-sync-token")
+    private String syncTokenFile;
+
+    @Option(
+            names = "-crawlThreads",
+            description = "Number of content types crawled concurrently")
+    private int crawlThreads = 4;
+
+    @Option(
+            names = "-consolidatedIndex",
+            description = "Index all the content types into a single index, each content type gets a filtered alias")
+    private boolean consolidatedIndex;
+
+    @Option(
+            names = "-consolidatedIndexName",
+            description = "Name and alias of the index that holds all the content types")
+    private String consolidatedIndexName = "contentful";
+
+    @Option(
+            names = "-routeByContentType",
+            description = "Route the documents of the consolidated index by content type")
+    private boolean routeByContentType;
+
     private IndexBuild indexBuild;
   }
 
@@ -213,6 +299,136 @@ public class ContentCrawlConfiguration {
       names = "-maxResultWindow",
       description = "MaxResultWindow ES")
     private int maxResultWindow = 15000;
+
+    @Option(
+      names = "-profile",
+      description = "Name of the index build profile, the default profile is used if not set")
+    private String profile;
+  }
+
+  /**
+   * Settings used to build an index and to serve it once built.
+   */
+  @Data
+  @NoArgsConstructor
+  public static class IndexProfile {
+
+    @Option(
+      names = "-docsPerShard",
+      description = "Expected documents per primary shard, used to calculate the number of shards")
+    private long docsPerShard = 5_000_000;
+
+    @Option(
+      names = "-maxShards",
+      description = "Maximum number of primary shards")
+    private int maxShards = 5;
+
+    @Option(
+      names = "-replicas",
+      description = "Number of replicas set once the index has been built")
+    private int replicas = 0;
+
+    @Option(
+      names = "-codec",
+      description = "Stored fields codec: default or best_compression")
+    private String codec = "default";
+
+    @Option(
+      names = "-mergePolicy",
+      description = "Merge policy settings, keys are relative to index.merge.policy, i.e.: segments_per_tier")
+    private Map<String,String> mergePolicy = new HashMap<>();
+
+    @Option(
+      names = "-forceMergeSegments",
+      description = "Segments per shard of the force merge run before serving the index, 0 disables it")
+    private int forceMergeSegments = 1;
+
+    @Option(
+      names = "-forceMergePollInterval",
+      description = "Seconds between checks of the force merge task")
+    private int forceMergePollInterval = 10;
+
+    @Option(
+      names = "-forceMergeTimeout",
+      description = "Minutes to wait for the force merge task before serving the index anyway")
+    private int forceMergeTimeout = 60;
+
+    @Option(
+      names = "-waitForStatus",
+      description = "Health the index must reach before the alias swap: yellow or green, green is lowered to yellow when there are not enough data nodes for the replicas")
+    private String waitForStatus = "yellow";
+
+    @Option(
+      names = "-healthTimeout",
+      description = "Seconds to wait for the index health before cancelling the alias swap")
+    private int healthTimeout = 300;
+
+    @Option(
+      names = "-warmUpQueries",
+      description = "Search request bodies run against the new index before the alias swap")
+    private List<String> warmUpQueries = new ArrayList<>();
+
+    @Option(
+      names = "-warmUpRounds",
+      description = "Times the warm up queries are run, latency is measured in the last round")
+    private int warmUpRounds = 2;
+
+    @Option(
+      names = "-warmUpLatencyBudget",
+      description = "Maximum milliseconds a warm up query can take in the last round, 0 disables the check")
+    private long warmUpLatencyBudget = 0;
+
+    @Option(
+      names = "-strictWarmUpLatencyBudget",
+      description = "Cancel the alias swap when the warm up latency budget is exceeded, by default it is only logged")
+    private boolean strictWarmUpLatencyBudget = false;
+
+    //Declared usage of the fields, if set the index mapping is optimized for it
+    @Nullable
+    private QueryProfile queryProfile;
+  }
+
+  /**
+   * Declares how the fields of an index are queried, fields not declared are only searched by term.
+   */
+  @Data
+  @NoArgsConstructor
+  public static class QueryProfile {
+
+    @Option(
+      names = "-facetFields",
+      description = "Fields used in aggregations")
+    private List<String> facetFields = new ArrayList<>();
+
+    @Option(
+      names = "-sortFields",
+      description = "Fields used to sort results as field:asc|desc, the first ones define the index sort")
+    private List<String> sortFields = new ArrayList<>();
+
+    @Option(
+      names = "-noDocValuesFields",
+      description = "Fields never used in aggregations, sorting or scripts, their doc_values are disabled")
+    private List<String> noDocValuesFields = new ArrayList<>();
+
+    @Option(
+      names = "-indexSortFields",
+      description = "Number of sort fields used to sort the index, 0 disables index sorting")
+    private int indexSortFields = 1;
+
+    @Option(
+      names = "-fullTextFields",
+      description = "Fields searched with relevance scoring")
+    private List<String> fullTextFields = new ArrayList<>();
+
+    @Option(
+      names = "-searchTextFields",
+      description = "Fields copied into search_text, if empty the copy_to of the mapping is kept")
+    private List<String> searchTextFields = new ArrayList<>();
+
+    @Option(
+      names = "-sourceExcludes",
+      description = "Fields indexed but not stored in the _source, they are lost if documents are updated")
+    private List<String> sourceExcludes = new ArrayList<>();
   }
 
   @Data
@@ -232,6 +448,36 @@ public class ContentCrawlConfiguration {
       names = "-gbifApiPassword",
       description = "Password for GBIF API")
     private String password;
+
+    @Option(
+      names = "-registryUpdateThreads",
+      description = "Number of concurrent download updates against the GBIF API")
+    private int registryUpdateThreads = 4;
+
+    @Option(
+      names = "-registryUpdateRate",
+      description = "Maximum number of GBIF API calls per second while updating downloads")
+    private double registryUpdateRate = 10;
+
+    @Option(
+      names = "-registryUpdateRetries",
+      description = "Number of attempts to update a download before giving up")
+    private int registryUpdateRetries = 3;
+
+    @Option(
+      names = "-citationPageSize",
+      description = "Page size used to list dataset usages through the GBIF API when no database is configured")
+    private int citationPageSize = 1000;
+
+    @Option(
+      names = "-citationPrefetchPages",
+      description = "Number of dataset usage pages requested ahead of their processing")
+    private int citationPrefetchPages = 2;
+
+    @Option(
+      names = "-citationThreads",
+      description = "Number of threads used to prefetch dataset usage pages")
+    private int citationThreads = 4;
   }
 
   /**
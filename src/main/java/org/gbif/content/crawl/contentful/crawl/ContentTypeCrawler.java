@@ -17,23 +17,33 @@ import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
-import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch._types.Script;
+import co.elastic.clients.elasticsearch._types.ScriptSource;
 import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.json.JsonData;
+import co.elastic.clients.util.BinaryData;
+import co.elastic.clients.util.ContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.contentful.java.cda.CDAArray;
 import com.contentful.java.cda.CDAClient;
 import com.contentful.java.cda.CDAEntry;
+import com.contentful.java.cda.CDAResource;
 import com.contentful.java.cma.model.CMAContentType;
 
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
 
 import static org.gbif.content.crawl.es.ElasticSearchUtils.createIndex;
 import static org.gbif.content.crawl.es.ElasticSearchUtils.getEsIdxName;
 import static org.gbif.content.crawl.es.ElasticSearchUtils.getEsIndexingIdxName;
-import static org.gbif.content.crawl.es.ElasticSearchUtils.swapIndexToAlias;
 import static org.gbif.content.crawl.es.ElasticSearchUtils.toFieldNameFormat;
 
 /**
@@ -41,12 +51,25 @@ import static org.gbif.content.crawl.es.ElasticSearchUtils.toFieldNameFormat;
  */
 public class ContentTypeCrawler {
 
-  //Buffer to use in Observables to accumulate results before send them to ElasticSearch
+  //Number of entries converted into ES documents in a single task
   private static final int CRAWL_BUFFER = 10;
 
+  //Batches of entries converted concurrently
+  private static final int BUILD_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+
+  //Bulk requests waiting to be sent while another one is executed
+  private static final int PENDING_BULK_REQUESTS = 2;
+
+  //Replaces the source of a document keeping its link tags
+  private static final String KEEP_TAGS_SCRIPT = "def tags = [:]; "
+                                                 + "for (def field : ctx._source.entrySet()) { "
+                                                 + "if (field.getKey().endsWith('Tag')) { tags.put(field.getKey(), field.getValue()) } } "
+                                                 + "ctx._source.clear(); "
+                                                 + "ctx._source.putAll(params.doc); "
+                                                 + "ctx._source.putAll(tags);";
+
   private static final Logger LOG = LoggerFactory.getLogger(ContentTypeCrawler.class);
 
-  private static final int PAGE_SIZE = 20;
 
 
   private final CMAContentType contentType;
@@ -57,7 +80,13 @@ public class ContentTypeCrawler {
 
   private final String esTypeName;
 
-  //Linkers decorate existing entries in the index with supplementary information (like tags)
+  //Routing of the documents, null if they are not routed
+  private final String routing;
+
+  //The index is created by this crawler, false if it is shared with other content types
+  private final boolean ownsIndex;
+
+  //Linkers collect supplementary information (like tags) of the linked entries
   private final ESDocumentLinker newsLinker;
   private final ESDocumentLinker articleLinker;
 
@@ -67,28 +96,63 @@ public class ContentTypeCrawler {
   private final ElasticsearchClient esClient;
   private final CDAClient cdaClient;
   private final VocabularyTerms vocabularyTerms;
-  private final ContentCrawlConfiguration.IndexBuild indexConfig;
+  private final LinkedEntryCache linkedEntryCache;
+  private final ContentCrawlConfiguration.IndexProfile indexProfile;
+
+  //Number of documents per bulk request
+  private final int batchSize;
 
+  //Contentful paging
+  private final int pageSize;
+  private final int pageRequests;
+  private final Executor pageExecutor;
 
   ContentTypeCrawler(CMAContentType contentType,
                      MappingGenerator mappingGenerator,
                      ElasticsearchClient esClient,
                      CDAClient cdaClient,
                      VocabularyTerms vocabularyTerms,
-                     String newsContentTypeId,
-                     String articleContentTypeId,
+                     LinkedEntryCache linkedEntryCache,
+                     ESDocumentLinker newsLinker,
+                     ESDocumentLinker articleLinker,
                      String projectContentTypeId,
-                     ContentCrawlConfiguration.IndexBuild indexConfig) {
+                     ContentCrawlConfiguration.Contentful configuration,
+                     ContentCrawlConfiguration.IndexProfile indexProfile,
+                     Executor pageExecutor) {
+    this(contentType, mappingGenerator, esClient, cdaClient, vocabularyTerms, linkedEntryCache, newsLinker,
+         articleLinker, projectContentTypeId, configuration, indexProfile, pageExecutor, null, false);
+  }
+
+  /**
+   * Crawler of a content type that is indexed into consolidatedIdxName, an index shared by all content types.
+   * If consolidatedIdxName is null, the content type is indexed into its own index.
+   */
+  ContentTypeCrawler(CMAContentType contentType,
+                     MappingGenerator mappingGenerator,
+                     ElasticsearchClient esClient,
+                     CDAClient cdaClient,
+                     VocabularyTerms vocabularyTerms,
+                     LinkedEntryCache linkedEntryCache,
+                     ESDocumentLinker newsLinker,
+                     ESDocumentLinker articleLinker,
+                     String projectContentTypeId,
+                     ContentCrawlConfiguration.Contentful configuration,
+                     ContentCrawlConfiguration.IndexProfile indexProfile,
+                     Executor pageExecutor,
+                     String consolidatedIdxName,
+                     boolean routeByContentType) {
     this.contentType = contentType;
     //index name has to be in lowercase
-    esIdxName = getEsIndexingIdxName(contentType.getName());
+    ownsIndex = consolidatedIdxName == null;
+    esIdxName = ownsIndex ? getEsIndexingIdxName(contentType.getName()) : consolidatedIdxName;
     //Index alias
     esIdxAlias = getEsIdxName(contentType.getName());
     //ES type name for this content typ
     esTypeName = toFieldNameFormat(contentType.getName());
-    //Used to create links in the indexes
-    newsLinker = new ESDocumentLinker(newsContentTypeId, esClient);
-    articleLinker = new ESDocumentLinker(articleContentTypeId, esClient);
+    routing = routeByContentType ? esTypeName : null;
+    //Used to create links in the indexes, they are shared by all the crawlers
+    this.newsLinker = newsLinker;
+    this.articleLinker = articleLinker;
     this.projectContentTypeId = projectContentTypeId;
 
     //Set the mapping generator
@@ -100,70 +164,148 @@ public class ContentTypeCrawler {
 
     this.vocabularyTerms = vocabularyTerms;
 
-    this.indexConfig = indexConfig;
+    this.linkedEntryCache = linkedEntryCache;
+
+    this.indexProfile = indexProfile;
+
+    batchSize = configuration.getIndexBuild().getBatchSize();
+
+    pageSize = configuration.getPageSize();
+
+    pageRequests = configuration.getPageRequests();
+
+    this.pageExecutor = pageExecutor;
   }
 
   /**
-   * Crawls the assigned content type into ElasticSearch.
+   * Crawls the assigned content type into its ElasticSearch index, the index is not associated to its alias.
+   * @return true if all the entries have been indexed
    */
-  public void crawl() {
-    //gets or (re)create the ES idx if doesn't exists
-    createIndex(esClient, esIdxName, mappingGenerator.getEsMapping(contentType));
+  public boolean crawl() {
+    //gets or (re)create the ES idx if doesn't exists, a shared index is created by the caller
+    if (ownsIndex) {
+      createIndex(esClient, esIdxName, mappingGenerator.getEsMapping(contentType), indexProfile, countEntries());
+    }
     LOG.info("Indexing ContentType [{}] into ES Index [{}]", contentType.getName(), esIdxName);
-    //Prepares the bulk/batch request
-    BulkRequest.Builder bulkRequestBuilder = new BulkRequest.Builder();
-    //Retrieves resources in a CDAArray
-    Observable.fromIterable(new ContentfulPager(cdaClient, PAGE_SIZE, contentType.getId()))
-      .doOnError(err -> { LOG.error("Error crawling content type", err);
-                          throw new RuntimeException(err);
-                        })
+    //Fetching pages, building documents and bulk indexing run as overlapped stages, the backpressure between them
+    //bounds the number of entries held in memory
+    return Flowable.fromIterable(new ContentfulPager(cdaClient, pageSize, contentType.getId(), pageExecutor,
+                                                     pageRequests))
+      .subscribeOn(Schedulers.io())
+      .concatMapIterable(CDAArray::items)
       .buffer(CRAWL_BUFFER)
-      .doOnComplete(() -> {
-         if(executeBulkRequest(bulkRequestBuilder.build())) {
-           swapIndexToAlias(esClient, esIdxAlias, esIdxName, indexConfig);
-         }
-      })
-      .subscribe( results -> results.forEach(
-                              cdaArray -> cdaArray.items()
-                              .forEach(cdaResource ->
-                                         bulkRequestBuilder.operations(op -> op
-                                             .index(idx -> idx
-                                                 .index(esIdxName)
-                                                 .id(cdaResource.id())
-                                                 .document(getESDoc((CDAEntry)cdaResource))))))
-      );
+      .concatMapEager(resources -> Flowable.fromCallable(() -> toIndexOperations(resources))
+                                    .subscribeOn(Schedulers.computation()),
+                      BUILD_CONCURRENCY, BUILD_CONCURRENCY)
+      .concatMapIterable(operations -> operations)
+      .buffer(batchSize)
+      .concatMap(operations -> Flowable.fromCallable(() -> executeBulkRequest(operations))
+                                .subscribeOn(Schedulers.io()),
+                 PENDING_BULK_REQUESTS)
+      .all(Boolean::booleanValue)
+      .doOnError(err -> LOG.error("Error crawling content type [{}]", contentType.getName(), err))
+      .onErrorReturnItem(false)
+      .blockingGet();
+  }
+
+  /**
+   * Name of the index built by this crawler.
+   */
+  public String getEsIdxName() {
+    return esIdxName;
+  }
+
+  /**
+   * Alias of the content type.
+   */
+  public String getEsIdxAlias() {
+    return esIdxAlias;
+  }
+
+  /**
+   * Value of the contentType field in the documents of this content type.
+   */
+  public String getEsTypeName() {
+    return esTypeName;
+  }
+
+  /**
+   * Number of entries of the content type as reported by Contentful.
+   */
+  long countEntries() {
+    return cdaClient.fetch(CDAEntry.class).withContentType(contentType.getId()).limit(1).all().total();
   }
 
   /**
    * Extracts the fields that will be indexed in ElasticSearch.
    */
   public Map<String,Object> getESDoc(CDAEntry cdaEntry) {
-    EsDocBuilder esDocBuilder = new EsDocBuilder(cdaEntry, vocabularyTerms, projectContentTypeId,
+    return newEsDocBuilder(cdaEntry).toEsDoc();
+  }
+
+  /**
+   * Extracts the fields that will be indexed in ElasticSearch serialized as a JSON document.
+   */
+  public BinaryData getESDocJson(CDAEntry cdaEntry) {
+    return BinaryData.of(newEsDocBuilder(cdaEntry).toJson(), ContentType.APPLICATION_JSON);
+  }
+
+  private EsDocBuilder newEsDocBuilder(CDAEntry cdaEntry) {
+    return new EsDocBuilder(cdaEntry, vocabularyTerms, projectContentTypeId,
             nestedCdaEntry -> {
               // decorate any entries, linkers are responsible for filtering suitable content types
               newsLinker.processEntryTag(nestedCdaEntry, esTypeName, cdaEntry.id());
               articleLinker.processEntryTag(nestedCdaEntry, esTypeName, cdaEntry.id());
-            });
-    return esDocBuilder.toEsDoc();
+            }, linkedEntryCache);
+  }
+
+  /**
+   * Converts a list of entries into ElasticSearch index operations.
+   */
+  private List<BulkOperation> toIndexOperations(List<CDAResource> resources) {
+    return resources.stream()
+      .map(cdaResource -> BulkOperation.of(op -> op
+                                             .index(idx -> idx
+                                               .index(esIdxName)
+                                               .id(cdaResource.id())
+                                               .routing(routing)
+                                               .document(getESDocJson((CDAEntry) cdaResource)))))
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Operation that replaces the document of an entry in the live index of the content type.
+   * The tags stored by linkers are kept, they are not part of the entry.
+   */
+  BulkOperation toUpsertOperation(CDAEntry cdaEntry) {
+    Map<String, Object> document = getESDoc(cdaEntry);
+    Script script = Script.of(sc -> sc
+      .lang("painless")
+      .source(ScriptSource.of(src -> src.scriptString(KEEP_TAGS_SCRIPT)))
+      .params("doc", JsonData.of(document)));
+    return BulkOperation.of(op -> op
+                              .update(u -> u
+                                .index(esIdxAlias)
+                                .id(cdaEntry.id())
+                                .action(a -> a.script(script).upsert(document))));
   }
 
   /**
    * Performs the execution of a ElasticSearch BulkRequest and logs the correspondent results.
    */
-  private boolean executeBulkRequest(BulkRequest bulkRequest) {
+  private boolean executeBulkRequest(List<BulkOperation> operations) {
     try {
-      if (!bulkRequest.operations().isEmpty()) {
-        LOG.info("Indexing {} documents into ElasticSearch", bulkRequest.operations().size());
-        BulkResponse bulkResponse = esClient.bulk(bulkRequest);
-        if (bulkResponse.errors()) {
-          LOG.error("Error indexing.  First error message: {}", bulkResponse.items().get(0).error().reason());
-          return false;
-        } else {
-          LOG.info("Indexed [{}] documents of content type [{}]", bulkResponse.items().size(), esIdxName);
-        }
-      } else {
-        LOG.info("Nothing to index for content type [{}]", esIdxName);
+      LOG.info("Indexing {} documents into ElasticSearch", operations.size());
+      BulkResponse bulkResponse = esClient.bulk(bulk -> bulk.operations(operations));
+      if (bulkResponse.errors()) {
+        bulkResponse.items().stream()
+          .map(BulkResponseItem::error)
+          .filter(Objects::nonNull)
+          .findFirst()
+          .ifPresent(error -> LOG.error("Error indexing.  First error message: {}", error.reason()));
+        return false;
       }
+      LOG.info("Indexed [{}] documents of content type [{}]", bulkResponse.items().size(), esIdxName);
       return true;
     } catch (IOException ex) {
       throw new RuntimeException(ex);
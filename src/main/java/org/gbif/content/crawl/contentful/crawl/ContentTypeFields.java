@@ -13,11 +13,15 @@
  */
 package org.gbif.content.crawl.contentful.crawl;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 import com.contentful.java.cda.CDAContentType;
 import com.contentful.java.cda.CDAField;
@@ -28,86 +32,162 @@ import static org.gbif.content.crawl.contentful.crawl.MappingGenerator.COLLAPSIB
 
 /**
  * This class creates a CACHE of common lookup operations on content type fields.
- * It's used to avoid recurrent iterations over fields to extract data used during indexing.
+ * Each content type revision is compiled once into a plan that tells how each field is indexed, so documents are built
+ * without evaluating field types or patterns per entry.
  */
 public class ContentTypeFields {
 
-  //Map CACHE of all type mappings per content type id
-  private static final Map<String, ContentTypeFields> CACHE = new HashMap<>();
+  /**
+   * How a field is indexed.
+   */
+  public enum FieldKind {
+    //Fields of the linked asset
+    ASSET_LINK,
+    //Vocabulary value or fields of the linked entry
+    ENTRY_LINK,
+    //Vocabulary values or fields of the linked resources
+    ARRAY,
+    //Blocks are indexed separately
+    BLOCKS,
+    //All the localized values
+    LOCALIZED_VALUE,
+    //Value of the default locale
+    VALUE
+  }
 
-  //CDAContent type to be analyzed
-  private final CDAContentType cdaContentType;
+  /**
+   * Compiled field of a content type.
+   */
+  public static class FieldPlan {
 
-  //Map from fieldName to idx
-  private final Map<String,Integer> fieldIdx;
+    private final CDAField field;
+    private final FieldKind kind;
 
-  //Maps field names to types
-  private final Map<String,CMAFieldType> fieldType;
+    private FieldPlan(CDAField field, FieldKind kind) {
+      this.field = field;
+      this.kind = kind;
+    }
 
-  //Maps field names to link types
-  private final Map<String,ContentfulLinkType> fieldLinkType;
+    public String getId() {
+      return field.id();
+    }
 
-  private final Set<String> collapsibleFields;
+    public FieldKind getKind() {
+      return kind;
+    }
 
-  /**
-   * Initializes all maps and local variables.
-   */
+    public CDAField getField() {
+      return field;
+    }
+  }
 
-  private ContentTypeFields(CDAContentType cdaContentType) {
-    this.cdaContentType = cdaContentType;
-    fieldIdx = cdaContentType.fields().stream()
-      .collect(Collectors.toMap(CDAField::id, cdaField -> cdaContentType.fields().indexOf(cdaField)));
+  //Fields of linked entries that are indexed
+  private static final Pattern LINKED_ENTRY_FIELDS = Pattern.compile(".*summary.*|.*title.*|.*body.*|label|url|country|isoCode");
+
+  //Localized fields used to get the locales of an entry
+  private static final List<String> LOCALIZED_FIELDS = Collections.unmodifiableList(
+    Arrays.asList("title", "body", "summary", "description"));
+
+  private static final String BLOCKS_FIELD = "blocks";
+
+  private static final String REVISION = "revision";
 
-    fieldType = cdaContentType.fields().stream()
-      .collect(Collectors.toMap(CDAField::id, cdaField -> CMAFieldType.valueOf(cdaField.type())));
+  //Map CACHE of the latest compiled revision per content type id, documents are built concurrently
+  private static final Map<String, ContentTypeFields> CACHE = new ConcurrentHashMap<>();
 
-    fieldLinkType = cdaContentType.fields().stream().filter(cdaField -> cdaField.linkType() != null)
-      .collect(Collectors.toMap(CDAField::id, cdaField -> ContentfulLinkType.valueOf(cdaField.linkType())));
+  //Revision of the compiled content type
+  private final String revision;
 
-    collapsibleFields = cdaContentType.fields().stream()
-                          .filter(cdaField -> COLLAPSIBLE_TYPES.contains(CMAFieldType.valueOf(cdaField.type()))
-                                              || COLLAPSIBLE_FIELDS.matcher(cdaField.id()).matches())
-                          .map(CDAField::id).collect(Collectors.toSet());
+  //Field plans by field name, in the order of the content type
+  private final Map<String, FieldPlan> fieldPlans = new LinkedHashMap<>();
 
+  //Fields indexed when an entry of this content type is linked from another entry
+  private final List<String> linkedEntryFields = new ArrayList<>();
+
+  //Localized fields that define the locales of an entry
+  private final List<String> localeFields = new ArrayList<>();
+
+  /**
+   * Compiles the plan of the content type.
+   */
+  private ContentTypeFields(CDAContentType cdaContentType) {
+    revision = revisionOf(cdaContentType);
+    //Content types Header Block, Feature Block do not have to be handled as Links
+    boolean isBlock = cdaContentType.id().endsWith("Block");
+    cdaContentType.fields().forEach(cdaField -> {
+      fieldPlans.put(cdaField.id(), new FieldPlan(cdaField, kindOf(cdaField)));
+      if (!isBlock && LINKED_ENTRY_FIELDS.matcher(cdaField.id()).matches()) {
+        linkedEntryFields.add(cdaField.id());
+      }
+      if (cdaField.isLocalized() && LOCALIZED_FIELDS.contains(cdaField.id())) {
+        localeFields.add(cdaField.id());
+      }
+    });
+  }
+
+  private static FieldKind kindOf(CDAField cdaField) {
+    CMAFieldType fieldType = CMAFieldType.valueOf(cdaField.type());
+    if (CMAFieldType.Link == fieldType) {
+      return cdaField.linkType() != null && ContentfulLinkType.Asset == ContentfulLinkType.valueOf(cdaField.linkType())
+        ? FieldKind.ASSET_LINK : FieldKind.ENTRY_LINK;
+    }
+    if (CMAFieldType.Array == fieldType) {
+      return BLOCKS_FIELD.equalsIgnoreCase(cdaField.id()) ? FieldKind.BLOCKS : FieldKind.ARRAY;
+    }
+    boolean collapsible = COLLAPSIBLE_TYPES.contains(fieldType) || COLLAPSIBLE_FIELDS.matcher(cdaField.id()).matches();
+    return cdaField.isLocalized() && !collapsible ? FieldKind.LOCALIZED_VALUE : FieldKind.VALUE;
   }
 
+  private static String revisionOf(CDAContentType cdaContentType) {
+    return Objects.toString(cdaContentType.attrs().get(REVISION));
+  }
 
   /**
    * Returns the CDAField of a field.
    */
   public CDAField getField(String fieldName) {
-    return cdaContentType.fields().get(fieldIdx.get(fieldName));
+    return fieldPlans.get(fieldName).getField();
+  }
+
+  /**
+   * Plan of the fields in the order of the content type.
+   */
+  public Iterable<FieldPlan> getFieldPlans() {
+    return fieldPlans.values();
   }
 
   /**
-   * Returns the ContentfulType of a field.
+   * Is the field localized.
    */
-  public CMAFieldType getFieldType(String fieldName) {
-    return fieldType.get(fieldName);
+  public boolean isLocalized(String fieldName) {
+    return fieldPlans.get(fieldName).getField().isLocalized();
   }
 
   /**
-   * Returns the ContentfulLinkType Type of a field.
+   * Fields indexed when an entry of this content type is linked from another entry.
    */
-  public ContentfulLinkType getFieldLinkType(String fieldName) {
-    return fieldLinkType.get(fieldName);
+  public List<String> getLinkedEntryFields() {
+    return linkedEntryFields;
   }
 
   /**
-   * Cans this field be a single value?.
+   * Localized fields that define the locales of an entry.
    */
-  public boolean isCollapsible(String field) {
-    return collapsibleFields.contains(field);
+  public List<String> getLocaleFields() {
+    return localeFields;
   }
 
   /**
-   * Gets a ContentTypeFields of CDAContentType.
+   * Gets a ContentTypeFields of CDAContentType, a content type is compiled again if its revision changes.
    */
   public static ContentTypeFields of(CDAContentType cdaContentType) {
-    return Optional.ofNullable(CACHE.get(cdaContentType.id()))
-            .orElseGet(() ->
-              CACHE.computeIfAbsent(cdaContentType.id(), key -> new ContentTypeFields(cdaContentType))
-            );
+    ContentTypeFields contentTypeFields = CACHE.get(cdaContentType.id());
+    if (contentTypeFields != null && contentTypeFields.revision.equals(revisionOf(cdaContentType))) {
+      return contentTypeFields;
+    }
+    return CACHE.compute(cdaContentType.id(), (id, cached) ->
+      cached != null && cached.revision.equals(revisionOf(cdaContentType)) ? cached
+        : new ContentTypeFields(cdaContentType));
   }
 
 }
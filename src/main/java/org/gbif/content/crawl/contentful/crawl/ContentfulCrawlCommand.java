@@ -38,6 +38,10 @@ public class ContentfulCrawlCommand implements Callable<Integer> {
   @Option(names = {"-c", "--config"}, description = "Configuration file path", required = true)
   private String configFile;
 
+  @Option(names = {"-i", "--incremental"},
+    description = "Apply the changes since the last sync to the live indices instead of rebuilding them")
+  private boolean incremental;
+
   /**
    * Executes the crawl.
    */
@@ -49,7 +53,14 @@ public class ContentfulCrawlCommand implements Callable<Integer> {
       ContentCrawlConfiguration configuration = mapper.readValue(new File(configFile), ContentCrawlConfiguration.class);
       
       LOG.info("Starting Contentful crawl with config: {}", configFile);
-      new ContentfulCrawler(configuration).run();
+      if (incremental) {
+        if (!new ContentfulCrawler(configuration).sync()) {
+          LOG.error("Contentful incremental crawl failed, not all the changes have been synchronized");
+          return 1;
+        }
+      } else {
+        new ContentfulCrawler(configuration).run();
+      }
       LOG.info("Contentful crawl completed successfully");
       return 0;
     } catch (Exception e) {
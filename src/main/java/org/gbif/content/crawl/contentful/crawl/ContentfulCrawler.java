@@ -15,11 +15,20 @@ package org.gbif.content.crawl.contentful.crawl;
 
 import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -31,8 +40,15 @@ import com.contentful.java.cda.CDAClient;
 import com.contentful.java.cma.CMAClient;
 import com.contentful.java.cma.model.CMAContentType;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import static org.gbif.content.crawl.es.ElasticSearchUtils.buildEsClient;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.createIndex;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.getEsIdxName;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.getEsIndexingIdxName;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.prepareForServing;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.swapConsolidatedIndexToAliases;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.swapIndicesToAliases;
 
 
 /**
@@ -45,11 +61,18 @@ public class ContentfulCrawler {
   //3 Minutes
   private static final int CONNECTION_TO =  3;
 
+  //Indices prepared for serving concurrently
+  private static final int MERGE_THREADS = 4;
+
   private final ContentCrawlConfiguration.Contentful configuration;
 
   private final CDAClient cdaClient;
   private final CMAClient cmaClient;
   private final ElasticsearchClient esClient;
+  private final ContentCrawlConfiguration.IndexProfile indexProfile;
+
+  //Executes the page requests of all the content types, its size limits the concurrent requests to Contentful
+  private final ExecutorService pageExecutor;
 
   private String newsContentTypeId;
   private String articleContentTypeId;
@@ -67,11 +90,17 @@ public class ContentfulCrawler {
     cdaClient = buildCdaClient();
     cmaClient = buildCmaClient();
     esClient = buildEsClient(configuration.getElasticSearch());
+    indexProfile = configuration.getIndexProfile(configuration.getContentful().getIndexBuild());
+    pageExecutor = Executors.newFixedThreadPool(this.configuration.getPageRequests(),
+                                                new ThreadFactoryBuilder()
+                                                  .setNameFormat("contentful-page-%d")
+                                                  .setDaemon(true)
+                                                  .build());
   }
 
 
   /**
-   * Executes the Crawler in a synchronous way, i.e.: process each resource per content type sequentially.
+   * Executes the Crawler, content types are crawled concurrently.
    */
   public void run() {
     LOG.info("Starting Contentful crawling");
@@ -93,10 +122,54 @@ public class ContentfulCrawler {
 
 
     //Crawl all Content Types, except for vocabularies
-    crawlContentTypes(webContentTypes, mappingGenerator, vocabularyTerms);
+    if (configuration.isConsolidatedIndex()) {
+      crawlConsolidated(webContentTypes, mappingGenerator, vocabularyTerms);
+    } else {
+      crawlContentTypes(webContentTypes, mappingGenerator, vocabularyTerms);
+    }
     LOG.info("Contentful crawling has finished");
   }
 
+  /**
+   * Applies the changes made since the last synchronization to the live indices, indices are not recreated.
+   * Link tags of new links are stored by the next full crawl.
+   * @return true if all the changes have been applied
+   */
+  public boolean sync() {
+    LOG.info("Starting Contentful incremental crawling");
+    Map<Boolean, List<CMAContentType>> contentTypes = getContentTypes();
+    List<CMAContentType> vocContentTypes = contentTypes.get(Boolean.TRUE);
+    List<CMAContentType> webContentTypes = contentTypes.get(Boolean.FALSE);
+    VocabularyTerms vocabularyTerms =  getVocabularyTerms(vocContentTypes);
+    MappingGenerator mappingGenerator = new MappingGenerator(vocContentTypes);
+    newsContentTypeId = getContentTypeId(webContentTypes, configuration.getNewsContentType());
+    articleContentTypeId = getContentTypeId(webContentTypes, configuration.getArticleContentType());
+    projectContentTypeId = getContentTypeId(webContentTypes, configuration.getProjectContentType());
+
+    //Documents are written into the live indices, linkers are only needed to build them
+    Map<String, String> liveIdxNames = Collections.emptyMap();
+    LinkedEntryCache linkedEntryCache = new LinkedEntryCache();
+    ESDocumentLinker newsLinker = new ESDocumentLinker(newsContentTypeId, esClient, liveIdxNames);
+    ESDocumentLinker articleLinker = new ESDocumentLinker(articleContentTypeId, esClient, liveIdxNames);
+    Map<String, ContentTypeCrawler> crawlers = new LinkedHashMap<>();
+    selectContentTypes(webContentTypes)
+      .forEach(contentType -> crawlers.put(contentType.getId(), new ContentTypeCrawler(contentType,
+                                                                                        mappingGenerator,
+                                                                                        esClient,
+                                                                                        cdaClient,
+                                                                                        vocabularyTerms,
+                                                                                        linkedEntryCache,
+                                                                                        newsLinker,
+                                                                                        articleLinker,
+                                                                                        projectContentTypeId,
+                                                                                        configuration,
+                                                                                        indexProfile,
+                                                                                        pageExecutor)));
+    boolean synced = new ContentfulSync(configuration, cdaClient, esClient, crawlers).run();
+    LOG.info("Contentful incremental crawling has finished");
+    return synced;
+  }
+
   /**
    * Extracts the terms of content types that represent vocabularies.
    */
@@ -127,28 +200,206 @@ public class ContentfulCrawler {
 
   /**
    * Crawls a list of ContentTypes into ElasticSearch.
+   * All the indices are built first and then published together, so the content alias changes atomically.
    */
   private void crawlContentTypes(Collection<CMAContentType> contentTypes, MappingGenerator mappingGenerator,
                                  VocabularyTerms vocabularyTerms) {
-    //The stream is sorted to ensure that the News and Article content types are crawled first, so they exist and may
-    // be updated to store reverse links into it
-    contentTypes.stream()
+    //Indices built in this crawl by alias, linkers store reverse links into them before they are published
+    Map<String, String> indexingIdxNames = new ConcurrentHashMap<>();
+    //Linked entries are processed once in the whole crawl
+    LinkedEntryCache linkedEntryCache = new LinkedEntryCache();
+    ESDocumentLinker newsLinker = new ESDocumentLinker(newsContentTypeId, esClient, indexingIdxNames);
+    ESDocumentLinker articleLinker = new ESDocumentLinker(articleContentTypeId, esClient, indexingIdxNames);
+    List<ContentTypeCrawler> crawlers = selectContentTypes(contentTypes).stream()
+      .map(contentType -> new ContentTypeCrawler(contentType,
+                                                 mappingGenerator,
+                                                 esClient,
+                                                 cdaClient,
+                                                 vocabularyTerms,
+                                                 linkedEntryCache,
+                                                 newsLinker,
+                                                 articleLinker,
+                                                 projectContentTypeId,
+                                                 configuration,
+                                                 indexProfile,
+                                                 pageExecutor))
+      .collect(Collectors.toList());
+    crawlers.forEach(contentTypeCrawler -> indexingIdxNames.put(contentTypeCrawler.getEsIdxAlias(),
+                                                                contentTypeCrawler.getEsIdxName()));
+    Map<ContentTypeCrawler, Boolean> results = schedule(crawlers);
+    applyTags(newsLinker, articleLinker);
+    List<ContentTypeCrawler> crawled = new ArrayList<>();
+    results.forEach((contentTypeCrawler, indexed) -> {
+      if (indexed) {
+        crawled.add(contentTypeCrawler);
+      } else {
+        LOG.error("Content type [{}] has not been indexed, its alias is not updated",
+                  contentTypeCrawler.getEsIdxAlias());
+        deleteIndex(contentTypeCrawler.getEsIdxName());
+      }
+    });
+    publish(crawled);
+  }
+
+  /**
+   * Crawls a list of ContentTypes into a single ElasticSearch index.
+   * The index is published only if all the content types have been indexed, the alias of each content type becomes
+   * a filtered alias of it.
+   */
+  private void crawlConsolidated(Collection<CMAContentType> contentTypes, MappingGenerator mappingGenerator,
+                                 VocabularyTerms vocabularyTerms) {
+    List<CMAContentType> selectedContentTypes = selectContentTypes(contentTypes);
+    String esIdxAlias = getEsIdxName(configuration.getConsolidatedIndexName());
+    String esIdxName = getEsIndexingIdxName(configuration.getConsolidatedIndexName());
+    //All the content types are linked into the consolidated index
+    Map<String, String> indexingIdxNames = new ConcurrentHashMap<>();
+    //Linked entries are processed once in the whole crawl
+    LinkedEntryCache linkedEntryCache = new LinkedEntryCache();
+    ESDocumentLinker newsLinker = new ESDocumentLinker(newsContentTypeId, esClient, indexingIdxNames,
+                                                       configuration.isRouteByContentType());
+    ESDocumentLinker articleLinker = new ESDocumentLinker(articleContentTypeId, esClient, indexingIdxNames,
+                                                          configuration.isRouteByContentType());
+    List<ContentTypeCrawler> crawlers = selectedContentTypes.stream()
+      .map(contentType -> new ContentTypeCrawler(contentType,
+                                                 mappingGenerator,
+                                                 esClient,
+                                                 cdaClient,
+                                                 vocabularyTerms,
+                                                 linkedEntryCache,
+                                                 newsLinker,
+                                                 articleLinker,
+                                                 projectContentTypeId,
+                                                 configuration,
+                                                 indexProfile,
+                                                 pageExecutor,
+                                                 esIdxName,
+                                                 configuration.isRouteByContentType()))
+      .collect(Collectors.toList());
+    crawlers.forEach(contentTypeCrawler -> indexingIdxNames.put(contentTypeCrawler.getEsIdxAlias(), esIdxName));
+
+    createIndex(esClient, esIdxName, mappingGenerator.getEsMapping(selectedContentTypes), indexProfile,
+                crawlers.stream().mapToLong(ContentTypeCrawler::countEntries).sum());
+    List<String> failed = schedule(crawlers).entrySet().stream()
+      .filter(result -> !result.getValue())
+      .map(result -> result.getKey().getEsIdxAlias())
+      .collect(Collectors.toList());
+    applyTags(newsLinker, articleLinker);
+    if (!failed.isEmpty()) {
+      LOG.error("Content types {} have not been indexed, index [{}] is not published", failed, esIdxName);
+      deleteIndex(esIdxName);
+      return;
+    }
+    try {
+      prepareForServing(esClient, esIdxName, configuration.getIndexBuild(), indexProfile);
+    } catch (IllegalStateException ex) {
+      LOG.error("Index [{}] can't be served, its aliases are not updated", esIdxName, ex);
+      deleteIndex(esIdxName);
+      return;
+    }
+    Map<String, String> contentTypeAliases = new LinkedHashMap<>();
+    crawlers.forEach(contentTypeCrawler -> contentTypeAliases.put(contentTypeCrawler.getEsIdxAlias(),
+                                                                  contentTypeCrawler.getEsTypeName()));
+    swapConsolidatedIndexToAliases(esClient, esIdxAlias, esIdxName, contentTypeAliases,
+                                   configuration.isRouteByContentType());
+  }
+
+  /**
+   * Crawls the content types concurrently, links between them are stored once all of them have been crawled.
+   * @return if all the entries have been indexed by crawler, in crawl order
+   */
+  private Map<ContentTypeCrawler, Boolean> schedule(List<ContentTypeCrawler> crawlers) {
+    ExecutorService executor = Executors.newFixedThreadPool(configuration.getCrawlThreads(),
+                                                            new ThreadFactoryBuilder()
+                                                              .setNameFormat("content-type-crawl-%d")
+                                                              .build());
+    try {
+      Map<ContentTypeCrawler, CompletableFuture<Boolean>> crawls = new LinkedHashMap<>();
+      crawlers.forEach(contentTypeCrawler -> crawls.put(contentTypeCrawler,
+                                                        CompletableFuture.supplyAsync(() -> crawl(contentTypeCrawler),
+                                                                                      executor)));
+      Map<ContentTypeCrawler, Boolean> results = new LinkedHashMap<>();
+      crawls.forEach((contentTypeCrawler, crawl) -> results.put(contentTypeCrawler, crawl.join()));
+      return results;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Stores the tags collected by the linkers into the indices being built, once all the content types are crawled.
+   */
+  private void applyTags(ESDocumentLinker... linkers) {
+    for (ESDocumentLinker linker : linkers) {
+      if (!linker.applyTags(configuration.getIndexBuild().getBatchSize())) {
+        LOG.warn("Not all the link tags have been stored");
+      }
+    }
+  }
+
+  /**
+   * Crawls a content type, errors are logged and reported as a failed crawl.
+   */
+  private boolean crawl(ContentTypeCrawler contentTypeCrawler) {
+    try {
+      return contentTypeCrawler.crawl();
+    } catch (RuntimeException ex) {
+      LOG.error("Error crawling content type [{}]", contentTypeCrawler.getEsIdxAlias(), ex);
+      return false;
+    }
+  }
+
+  /**
+   * Content types to crawl in the configured order.
+   */
+  private List<CMAContentType> selectContentTypes(Collection<CMAContentType> contentTypes) {
+    return contentTypes.stream()
       .filter(contentType -> configuration.getContentTypes().contains(contentType.getName()))
       .sorted(Comparator.comparingInt(ct -> configuration.getContentTypes().indexOf(ct.getName())))
-      .forEach(contentType -> {
-        ContentTypeCrawler contentTypeCrawler = new ContentTypeCrawler(contentType,
-                                                                       mappingGenerator,
-                                                                       esClient,
-                                                                       cdaClient,
-                                                                       vocabularyTerms,
-                                                                       newsContentTypeId,
-                                                                       articleContentTypeId,
-                                                                       projectContentTypeId,
-                                                                       configuration.getIndexBuild());
-        contentTypeCrawler.crawl();
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Prepares the indices for serving concurrently and swaps all their aliases in a single call.
+   * Indices that fail to be prepared are deleted and their aliases keep pointing to the previous index.
+   */
+  private void publish(List<ContentTypeCrawler> crawled) {
+    ExecutorService executor = Executors.newFixedThreadPool(MERGE_THREADS,
+                                                            new ThreadFactoryBuilder()
+                                                              .setNameFormat("index-merge-%d")
+                                                              .build());
+    try {
+      Map<ContentTypeCrawler, CompletableFuture<Void>> preparations = new LinkedHashMap<>();
+      crawled.forEach(contentTypeCrawler -> preparations.put(contentTypeCrawler, CompletableFuture.runAsync(
+        () -> prepareForServing(esClient, contentTypeCrawler.getEsIdxName(), configuration.getIndexBuild(),
+                                indexProfile), executor)));
+      Map<String, String> aliasIndices = new LinkedHashMap<>();
+      preparations.forEach((contentTypeCrawler, preparation) -> {
+        try {
+          preparation.join();
+          aliasIndices.put(contentTypeCrawler.getEsIdxAlias(), contentTypeCrawler.getEsIdxName());
+        } catch (CompletionException ex) {
+          LOG.error("Index [{}] can't be served, its alias is not updated", contentTypeCrawler.getEsIdxName(), ex);
+          deleteIndex(contentTypeCrawler.getEsIdxName());
+        }
       });
+      if (!aliasIndices.isEmpty()) {
+        swapIndicesToAliases(esClient, aliasIndices);
+      }
+    } finally {
+      executor.shutdown();
+    }
   }
 
+  /**
+   * Deletes an index that won't be published.
+   */
+  private void deleteIndex(String idxName) {
+    try {
+      esClient.indices().delete(d -> d.index(idxName));
+    } catch (IOException ex) {
+      LOG.warn("Error deleting index [{}]", idxName, ex);
+    }
+  }
 
   /**
    * @return a new instance of a Contentful CDAClient.
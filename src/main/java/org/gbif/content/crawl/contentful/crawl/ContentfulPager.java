@@ -13,8 +13,16 @@
  */
 package org.gbif.content.crawl.contentful.crawl;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,9 +30,13 @@ import org.slf4j.LoggerFactory;
 import com.contentful.java.cda.CDAArray;
 import com.contentful.java.cda.CDAClient;
 import com.contentful.java.cda.CDAEntry;
+import com.contentful.java.cda.CDAHttpException;
 
 /**
  * Iterates over the resources of a Contentful content type.
+ * The total number of entries is read from the first page and the following pages are fetched concurrently, pages
+ * are returned in order. Pages that exceed the Contentful response size limit are split and the size of the
+ * following pages is reduced.
  */
 public class ContentfulPager implements Iterable<CDAArray> {
 
@@ -37,6 +49,13 @@ public class ContentfulPager implements Iterable<CDAArray> {
 
   private static final String ALL = "*";
 
+  //A stable order is required to page using skip
+  private static final String ORDER = "sys.id";
+
+  private static final int BAD_REQUEST = 400;
+
+  private static final String RESPONSE_TOO_BIG = "Response size too big";
+
   //Contentful client
   private final CDAClient cdaClient;
 
@@ -46,43 +65,114 @@ public class ContentfulPager implements Iterable<CDAArray> {
   //Content Type identifier
   private final String contentTypeId;
 
+  //Executor of page requests, it can be shared to limit the requests of several pagers
+  private final Executor executor;
+
+  //Maximum number of pages requested ahead
+  private final int maxPendingPages;
+
   /**
    * Iterator through the resources of a Content Type.
    */
   private class ContentfulIterator implements Iterator<CDAArray> {
 
-    //Current page
+    //Page size of the next requests, reduced if responses are too big
+    private final AtomicInteger currentPageSize = new AtomicInteger(pageSize);
+
+    //Requested pages in order
+    private final Deque<CompletableFuture<List<CDAArray>>> pending = new ArrayDeque<>();
+
+    //Fetched pages in order
+    private final Deque<CDAArray> fetched = new ArrayDeque<>();
+
+    //Offset of the next page to request
     private int skip;
 
-    //Current results
-    private CDAArray current;
+    //Total number of entries, -1 until the first page is fetched
+    private int total = -1;
 
     @Override
     public boolean hasNext() {
-      //fetch the next set of results
-      current = cdaClient.fetch(CDAEntry.class).withContentType(contentTypeId).include(LEVEL).limit(pageSize)
-                  .where(LOCALE_PARAM, ALL).skip(skip).all();
-      skip += pageSize;
-      return current.total() > 0;
+      if (total < 0) {
+        int limit = currentPageSize.get();
+        List<CDAArray> firstPages = fetch(0, limit);
+        total = firstPages.get(0).total();
+        skip = limit;
+        addFetched(firstPages);
+      }
+      requestPages();
+      while (fetched.isEmpty() && !pending.isEmpty()) {
+        addFetched(pending.poll().join());
+        requestPages();
+      }
+      return !fetched.isEmpty();
     }
 
     @Override
     public CDAArray next() {
-      if (current.total() == 0) {
+      if (!hasNext()) {
         throw new NoSuchElementException("No more resources available");
       }
-      LOG.info("Crawling content type [{}], from page [{}] to page [{}]", contentTypeId, skip, skip + pageSize);
-      return current;
+      return fetched.poll();
+    }
+
+    private void addFetched(List<CDAArray> pages) {
+      pages.stream().filter(page -> !page.items().isEmpty()).forEach(fetched::add);
+    }
+
+    /**
+     * Requests pages until there are maxPendingPages pending pages or all the pages have been requested.
+     */
+    private void requestPages() {
+      while (pending.size() < maxPendingPages && skip < total) {
+        int pageSkip = skip;
+        int limit = currentPageSize.get();
+        pending.add(CompletableFuture.supplyAsync(() -> fetch(pageSkip, limit), executor));
+        skip += limit;
+      }
+    }
+
+    /**
+     * Fetches the entries from skip to skip + limit, the range is split in several pages if the response is too big.
+     */
+    private List<CDAArray> fetch(int skip, int limit) {
+      try {
+        LOG.info("Crawling content type [{}], from [{}] to [{}]", contentTypeId, skip, skip + limit);
+        return Collections.singletonList(cdaClient.fetch(CDAEntry.class).withContentType(contentTypeId)
+                                           .include(LEVEL).limit(limit).skip(skip).orderBy(ORDER)
+                                           .where(LOCALE_PARAM, ALL).all());
+      } catch (CDAHttpException ex) {
+        if (limit > 1 && isResponseTooBig(ex)) {
+          int half = limit / 2;
+          LOG.warn("Response of content type [{}] too big for {} entries, reducing page size to {}", contentTypeId,
+                   limit, half);
+          currentPageSize.accumulateAndGet(half, Math::min);
+          List<CDAArray> pages = new ArrayList<>(fetch(skip, half));
+          pages.addAll(fetch(skip + half, limit - half));
+          return pages;
+        }
+        throw ex;
+      }
     }
   }
 
   /**
    * Full constructor.
    */
-  public ContentfulPager(CDAClient cdaClient, int pageSize, String contentTypeId) {
+  public ContentfulPager(CDAClient cdaClient, int pageSize, String contentTypeId, Executor executor,
+                         int maxPendingPages) {
     this.cdaClient = cdaClient;
     this.pageSize = pageSize;
     this.contentTypeId = contentTypeId;
+    this.executor = executor;
+    this.maxPendingPages = maxPendingPages;
+  }
+
+  /**
+   * Is the error caused by a response that exceeds the Contentful response size limit.
+   */
+  static boolean isResponseTooBig(CDAHttpException ex) {
+    return ex.responseCode() == BAD_REQUEST && String.valueOf(ex.responseBody()).contains(RESPONSE_TOO_BIG);
   }
 
   @Override
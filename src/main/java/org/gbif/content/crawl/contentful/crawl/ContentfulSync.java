@@ -0,0 +1,289 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.contentful.crawl;
+
+import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import okhttp3.HttpUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.contentful.java.cda.CDAArray;
+import com.contentful.java.cda.CDAAsset;
+import com.contentful.java.cda.CDAClient;
+import com.contentful.java.cda.CDAEntry;
+import com.contentful.java.cda.CDAHttpException;
+import com.contentful.java.cda.SynchronizedSpace;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Applies the changes made in Contentful since the last synchronization to the live indices.
+ * Changes are read from the CDA sync endpoint, the sync token is persisted in a file between runs.
+ * Changed entries and the entries that link to changed or deleted entries and assets are re-indexed in place, page
+ * by page, deleted entries are removed from the indices.
+ */
+class ContentfulSync {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ContentfulSync.class);
+
+  //how many nested elements should be retrieved on each call
+  private static final int LEVEL = 2;
+
+  private static final String LOCALE_PARAM = "locale";
+
+  private static final String ALL = "*";
+
+  private static final String SYNC_TOKEN_PARAM = "sync_token";
+
+  //Name of the sync token file in the data directory
+  private static final String SYNC_TOKEN_FILE = "contentful-sync-token";
+
+  //A stable order is required to page using skip
+  private static final String ORDER = "sys.id";
+
+  //Maximum number of ids per request and initial page size of linking entries, halved if responses are too big
+  private static final int IDS_PER_REQUEST = 100;
+  private static final int LINKING_PAGE_SIZE = 100;
+
+  private final CDAClient cdaClient;
+  private final ElasticsearchClient esClient;
+  private final Path syncTokenFile;
+  private final int batchSize;
+
+  //Crawlers of the configured content types by content type id, they build the documents of the changed entries
+  private final Map<String, ContentTypeCrawler> crawlers;
+
+  ContentfulSync(ContentCrawlConfiguration.Contentful configuration, CDAClient cdaClient,
+                 ElasticsearchClient esClient, Map<String, ContentTypeCrawler> crawlers) {
+    this.cdaClient = cdaClient;
+    this.esClient = esClient;
+    this.crawlers = crawlers;
+    syncTokenFile = Optional.ofNullable(configuration.getSyncTokenFile())
+      .map(Paths::get)
+      .orElseGet(() -> Optional.ofNullable(configuration.getDataDir())
+        .map(dataDir -> dataDir.resolve(SYNC_TOKEN_FILE))
+        .orElseThrow(() -> new IllegalStateException("dataDir or syncTokenFile must be configured for incremental crawls")));
+    batchSize = configuration.getIndexBuild().getBatchSize();
+  }
+
+  /**
+   * Synchronizes the changes since the stored sync token, without a token all the entries are re-indexed.
+   * The new sync token is stored only if all the changes have been applied.
+   * @return true if all the changes have been applied
+   */
+  boolean run() {
+    Optional<String> syncToken = readSyncToken();
+    LOG.info("Synchronizing Contentful changes {}", syncToken.map(token -> "since the last sync")
+      .orElse("from an initial sync"));
+    SynchronizedSpace space = syncToken.map(token -> cdaClient.sync(token).fetch())
+      .orElseGet(() -> cdaClient.sync().fetch());
+    String nextSyncToken = HttpUrl.get(space.nextSyncUrl()).queryParameter(SYNC_TOKEN_PARAM);
+
+    Set<String> changedEntries = new LinkedHashSet<>();
+    Set<String> deletedEntries = new LinkedHashSet<>(space.deletedEntries());
+    Set<String> changedAssets = new LinkedHashSet<>(space.deletedAssets());
+    space.items().forEach(resource -> {
+      if (resource instanceof CDAEntry) {
+        changedEntries.add(resource.id());
+      } else if (resource instanceof CDAAsset) {
+        changedAssets.add(resource.id());
+      }
+    });
+    //Only the ids of the synchronized resources are used, the resources are not referenced anymore
+    space = null;
+    LOG.info("Changes to synchronize: {} entries, {} assets, {} deleted entries", changedEntries.size(),
+             changedAssets.size(), deletedEntries.size());
+
+    //Entries are fetched and re-indexed page by page, only the ids of the re-indexed entries are kept
+    Set<String> reindexed = new HashSet<>();
+    boolean synced = true;
+    for (List<String> idsPage : Lists.partition(new ArrayList<>(changedEntries), IDS_PER_REQUEST)) {
+      synced &= upsert(fetchEntries(idsPage), reindexed);
+    }
+
+    //Documents embed linked entries and assets, the entries linking to a change or a deletion are also re-indexed.
+    //An initial sync contains all the entries, so links don't need to be followed
+    if (syncToken.isPresent()) {
+      for (String id : Sets.union(changedEntries, deletedEntries)) {
+        synced &= upsertLinking("links_to_entry", id, reindexed);
+      }
+      for (String id : changedAssets) {
+        synced &= upsertLinking("links_to_asset", id, reindexed);
+      }
+    }
+    LOG.info("Re-indexed {} entries", reindexed.size());
+
+    synced = synced && delete(deletedEntries);
+    if (synced) {
+      writeSyncToken(nextSyncToken);
+    } else {
+      LOG.error("Not all the changes have been synchronized, the sync token is not updated");
+    }
+    return synced;
+  }
+
+  /**
+   * Fetches a page of entries of the configured content types with their linked entries resolved.
+   */
+  private List<CDAEntry> fetchEntries(List<String> idsPage) {
+    return toConfiguredEntries(cdaClient.fetch(CDAEntry.class)
+                                 .where("sys.id[in]", String.join(",", idsPage))
+                                 .include(LEVEL)
+                                 .limit(idsPage.size())
+                                 .where(LOCALE_PARAM, ALL)
+                                 .all());
+  }
+
+  /**
+   * Re-indexes, page by page, the entries of the configured content types that link to an entry or asset.
+   * The page size is halved while the responses exceed the Contentful response size limit.
+   */
+  private boolean upsertLinking(String linkParam, String id, Set<String> reindexed) {
+    boolean upserted = true;
+    int limit = LINKING_PAGE_SIZE;
+    int skip = 0;
+    while (true) {
+      CDAArray linking;
+      try {
+        linking = cdaClient.fetch(CDAEntry.class)
+                    .where(linkParam, id)
+                    .include(LEVEL)
+                    .limit(limit)
+                    .skip(skip)
+                    .orderBy(ORDER)
+                    .where(LOCALE_PARAM, ALL)
+                    .all();
+      } catch (CDAHttpException ex) {
+        if (limit > 1 && ContentfulPager.isResponseTooBig(ex)) {
+          limit /= 2;
+          LOG.warn("Response of entries linking to {} too big, reducing page size to {}", id, limit);
+          continue;
+        }
+        throw ex;
+      }
+      upserted &= upsert(toConfiguredEntries(linking), reindexed);
+      skip += limit;
+      if (skip >= linking.total()) {
+        return upserted;
+      }
+    }
+  }
+
+  private List<CDAEntry> toConfiguredEntries(CDAArray cdaArray) {
+    return cdaArray.items().stream()
+      .filter(resource -> resource instanceof CDAEntry)
+      .map(resource -> (CDAEntry) resource)
+      .filter(entry -> crawlers.containsKey(entry.contentType().id()))
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Re-indexes the entries not yet re-indexed into the live index of their content type.
+   * @param reindexed ids of the entries already re-indexed, it is updated with the new ones
+   */
+  private boolean upsert(Collection<CDAEntry> entries, Set<String> reindexed) {
+    List<BulkOperation> operations = entries.stream()
+      .filter(entry -> reindexed.add(entry.id()))
+      .map(entry -> crawlers.get(entry.contentType().id()).toUpsertOperation(entry))
+      .collect(Collectors.toList());
+    boolean upserted = true;
+    for (List<BulkOperation> batch : Lists.partition(operations, batchSize)) {
+      upserted &= executeBulkRequest(batch);
+    }
+    return upserted;
+  }
+
+  /**
+   * Deletes the entries from the live indices of all the configured content types.
+   */
+  private boolean delete(Collection<String> ids) {
+    if (ids.isEmpty()) {
+      return true;
+    }
+    List<String> aliases = crawlers.values().stream().map(ContentTypeCrawler::getEsIdxAlias)
+                            .collect(Collectors.toList());
+    try {
+      long deleted = esClient.deleteByQuery(d -> d.index(aliases)
+                                              .ignoreUnavailable(true)
+                                              .allowNoIndices(true)
+                                              .query(q -> q.ids(i -> i.values(new ArrayList<>(ids)))))
+                      .deleted();
+      LOG.info("Deleted {} documents of {} deleted entries", deleted, ids.size());
+      return true;
+    } catch (IOException ex) {
+      LOG.error("Error deleting entries", ex);
+      return false;
+    }
+  }
+
+  private boolean executeBulkRequest(List<BulkOperation> operations) {
+    try {
+      BulkResponse bulkResponse = esClient.bulk(bulk -> bulk.operations(operations));
+      if (bulkResponse.errors()) {
+        LOG.error("Error re-indexing.  First error message: {}", bulkResponse.items().stream()
+          .filter(item -> item.error() != null)
+          .findFirst()
+          .map(item -> item.error().reason())
+          .orElse(null));
+        return false;
+      }
+      return true;
+    } catch (IOException ex) {
+      LOG.error("Error re-indexing entries", ex);
+      return false;
+    }
+  }
+
+  private Optional<String> readSyncToken() {
+    try {
+      return Files.exists(syncTokenFile)
+        ? Optional.of(new String(Files.readAllBytes(syncTokenFile), StandardCharsets.UTF_8).trim())
+            .filter(token -> !token.isEmpty())
+        : Optional.empty();
+    } catch (IOException ex) {
+      throw new IllegalStateException("Error reading sync token file " + syncTokenFile, ex);
+    }
+  }
+
+  private void writeSyncToken(String syncToken) {
+    try {
+      Path parent = syncTokenFile.toAbsolutePath().getParent();
+      if (parent != null) {
+        Files.createDirectories(parent);
+      }
+      Files.write(syncTokenFile, syncToken.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException ex) {
+      throw new IllegalStateException("Error writing sync token file " + syncTokenFile, ex);
+    }
+  }
+}
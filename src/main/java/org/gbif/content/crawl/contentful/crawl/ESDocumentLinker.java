@@ -13,49 +13,81 @@
  */
 package org.gbif.content.crawl.contentful.crawl;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
-import co.elastic.clients.elasticsearch.core.UpdateRequest;
 import co.elastic.clients.elasticsearch._types.Script;
 import co.elastic.clients.elasticsearch._types.ScriptSource;
-
-
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
 import co.elastic.clients.json.JsonData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.contentful.java.cda.CDAEntry;
+import com.google.common.collect.Lists;
 
 import static org.gbif.content.crawl.es.ElasticSearchUtils.getEsIdxName;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.toFieldNameFormat;
 
 /**
  * Utility class to create links between content elements in the ES Document.
+ * Tags are accumulated while content types are crawled and stored into the target documents by applyTags.
  */
 public class ESDocumentLinker {
 
   private static final Logger LOG = LoggerFactory.getLogger(ESDocumentLinker.class);
 
-  private static final String NEWS_UPDATE_SCRIPT  = "if (ctx._source.%1$s == null) "  //field doesn't exist
-                                                    + "{ctx._source.%1$s = [params.tag]} " //create new list/array
-                                                    + "else if (ctx._source.%1$s.contains(params.tag)) " //value exists
-                                                    + "{ ctx.op = \"none\"  } " //do nothing
-                                                    + "else { ctx._source.%1$s.add(params.tag) }"; //add new value
+  //Appends the tags of each field to a live document, existing tags are kept
+  private static final String APPEND_TAGS_SCRIPT = "boolean changed = false; "
+                                                   + "for (entry in params.tags.entrySet()) { "
+                                                   + "def values = ctx._source[entry.getKey()]; "
+                                                   + "if (values == null) " //field doesn't exist
+                                                   + "{ ctx._source[entry.getKey()] = entry.getValue(); changed = true; } "
+                                                   + "else { for (tag in entry.getValue()) { "
+                                                   + "if (!values.contains(tag)) { values.add(tag); changed = true; } } } } "
+                                                   + "if (!changed) { ctx.op = \"none\" }"; //do nothing
 
   private final String targetContentTypeId;
 
   private final ElasticsearchClient esClient;
 
-  public ESDocumentLinker(String targetContentTypeId, ElasticsearchClient esClient) {
+  //Indices being built in the current crawl by alias, they are not yet associated to their aliases
+  private final Map<String, String> indexingIdxNames;
+
+  //Documents are routed by their content type
+  private final boolean routed;
+
+  //Tags by field by target document id, it is updated by concurrent crawlers
+  private final Map<String, Map<String, Set<String>>> tags = new ConcurrentHashMap<>();
+
+  //Name of the target content type, it is known once the first tag is collected
+  private volatile String targetContentTypeName;
+
+  public ESDocumentLinker(String targetContentTypeId, ElasticsearchClient esClient,
+                          Map<String, String> indexingIdxNames) {
+    this(targetContentTypeId, esClient, indexingIdxNames, false);
+  }
+
+  public ESDocumentLinker(String targetContentTypeId, ElasticsearchClient esClient,
+                          Map<String, String> indexingIdxNames, boolean routed) {
     this.esClient = esClient;
     this.targetContentTypeId =  targetContentTypeId;
+    this.indexingIdxNames = indexingIdxNames;
+    this.routed = routed;
   }
 
   /**
-   * This method updates the news index by adding a new field [contentTypeName]Tag which stores all the ids
-   * related to that item from this content type, it is used for creating RSS feeds for specific elements.
+   * Collects a new tag for the field [contentTypeName]Tag of the linked item, it stores all the ids related to
+   * that item from this content type, it is used for creating RSS feeds for specific elements.
    */
   private void processEntryTag(CDAEntry cdaEntry, String esTypeName, String tagValue) {
     if (cdaEntry.contentType().id().equals(targetContentTypeId)) {
@@ -86,37 +118,75 @@ public class ESDocumentLinker {
   }
 
   /**
-   * Inserts the tag in the News index.
+   * Accumulates the tag of the target entry.
    */
   private void insertTag(CDAEntry cdaEntry, String esTypeName, String tagValue) {
-    try {
-      String indexName = getEsIdxName(cdaEntry.contentType().name());
-      String documentId = cdaEntry.id();
-      String fieldName = esTypeName + "Tag";
-      String scriptSource = String.format(NEWS_UPDATE_SCRIPT, fieldName);
-
-      Map<String, JsonData> params = new HashMap<>();
-      params.put("tag", JsonData.of(tagValue));
-
-      Script script = Script.of(s -> s
-          .lang("painless")
-          .source(ScriptSource.of( sc -> sc.scriptString(scriptSource)))
-          .params(params)
-      );
-
-      UpdateRequest<Object, Object> updateRequest = UpdateRequest.of(u -> u
-          .index(indexName)
-          .id(documentId)
-          .script(script)
-          .retryOnConflict(3)
-      );
-
-      esClient.update(updateRequest, Object.class);
+    targetContentTypeName = cdaEntry.contentType().name();
+    tags.computeIfAbsent(cdaEntry.id(), id -> new ConcurrentHashMap<>())
+      .computeIfAbsent(esTypeName + "Tag", field -> ConcurrentHashMap.newKeySet())
+      .add(tagValue);
+  }
 
-      LOG.info("Updated tag {} for entry {} in index {}", tagValue, documentId, indexName);
+  /**
+   * Script that appends the tags of each field to the existing ones.
+   */
+  private static Script appendTagsScript(Map<String, Set<String>> document) {
+    return Script.of(sc -> sc
+      .lang("painless")
+      .source(ScriptSource.of(src -> src.scriptString(APPEND_TAGS_SCRIPT)))
+      .params("tags", JsonData.of(document)));
+  }
 
-    } catch (Exception ex) {
-      LOG.error("Error updating news tag {} from entry {} ", tagValue, cdaEntry.id(), ex);
+  /**
+   * Stores the accumulated tags into the target index using bulk updates, all the tag fields of a document
+   * are sent in a single update. The accumulated tags are cleared.
+   * Indices built in this crawl only contain the tags of this crawl, so their tag fields are replaced using partial
+   * updates. Tags of live indices, whose content type is not crawled, are appended to the existing ones.
+   * @param batchSize number of documents per bulk request
+   * @return true if all the documents have been updated
+   */
+  public boolean applyTags(int batchSize) {
+    if (tags.isEmpty()) {
+      return true;
+    }
+    String alias = getEsIdxName(targetContentTypeName);
+    String indexName = indexingIdxNames.getOrDefault(alias, alias);
+    boolean live = !indexingIdxNames.containsKey(alias);
+    String routing = routed ? toFieldNameFormat(targetContentTypeName) : null;
+    List<BulkOperation> operations = new ArrayList<>();
+    tags.forEach((documentId, fields) -> {
+      Map<String, Set<String>> document = new HashMap<>();
+      fields.forEach((field, values) -> document.put(field, new TreeSet<>(values)));
+      operations.add(BulkOperation.of(op -> op
+        .update(u -> {
+          u.index(indexName).id(documentId).routing(routing);
+          if (live) {
+            return u.retryOnConflict(3).action(a -> a.script(appendTagsScript(document)));
+          }
+          return u.action(a -> a.doc(JsonData.of(document)));
+        })));
+    });
+    tags.clear();
+    boolean applied = true;
+    int updated = 0;
+    try {
+      for (List<BulkOperation> batch : Lists.partition(operations, batchSize)) {
+        BulkResponse bulkResponse = esClient.bulk(bulk -> bulk.operations(batch));
+        if (bulkResponse.errors()) {
+          applied = false;
+          LOG.error("Error updating tags.  First error message: {}", bulkResponse.items().stream()
+            .filter(item -> item.error() != null)
+            .findFirst()
+            .map(item -> item.error().reason())
+            .orElse(null));
+        }
+        updated += (int) bulkResponse.items().stream().filter(item -> item.error() == null).count();
+      }
+    } catch (IOException ex) {
+      LOG.error("Error updating tags in index {}", indexName, ex);
+      return false;
     }
+    LOG.info("Updated tags of {} documents in index {}", updated, indexName);
+    return applied;
   }
 }
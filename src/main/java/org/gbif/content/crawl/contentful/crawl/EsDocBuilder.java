@@ -16,14 +16,19 @@ package org.gbif.content.crawl.contentful.crawl;
 import com.contentful.java.cda.*;
 import org.gbif.content.crawl.es.ElasticSearchUtils;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.function.Consumer;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import com.contentful.java.cma.Constants;
-import com.google.common.collect.Lists;
+import org.apache.commons.lang3.mutable.MutableBoolean;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.RawValue;
 
 /**
  * Translates a CDAEntry into Map object indexable in ElasticSearch.
@@ -32,15 +37,17 @@ public class EsDocBuilder {
 
   private static final String REGION_FIELD = "gbifRegion";
 
-  private static final Pattern LINKED_ENTRY_FIELDS = Pattern.compile(".*summary.*|.*title.*|.*body.*|label|url|country|isoCode");
-
-  private static final List<String> LOCALIZED_FIELDS = Lists.newArrayList("title","body","summary","description");
 
   private static final String LOCALE_FIELD = "locale";
   private static final String ID_FIELD = "id";
 
   private static final String CONTENT_TYPE_FIELD = "contentType";
 
+  //Serializes documents as the Elasticsearch client does
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+                                              .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
+                                              .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
   private final String projectContentTypeId;
 
   private final Map<String,Object> entries;
@@ -48,14 +55,18 @@ public class EsDocBuilder {
   private final VocabularyTerms vocabularyTerms;
   private final Consumer<Object> nestedEntriesConsumer;
   private final CDAEntry cdaEntry;
+  private final LinkedEntryCache linkedEntryCache;
 
   /**
    * Creates EsDocBuilder instance.
    * @param cdaEntry Contentful resource to be translated
    * @param vocabularyTerms Vocabulary metadata
    * @param nestedEntriesConsumer Consumer of nested entries
+   * @param linkedEntryCache Fields of the linked entries already processed
    */
-  public EsDocBuilder(CDAEntry cdaEntry, VocabularyTerms vocabularyTerms, String projectContentTypeId, Consumer<Object> nestedEntriesConsumer) {
+  public EsDocBuilder(CDAEntry cdaEntry, VocabularyTerms vocabularyTerms, String projectContentTypeId,
+                      Consumer<Object> nestedEntriesConsumer, LinkedEntryCache linkedEntryCache) {
+    this.linkedEntryCache = linkedEntryCache;
     this.vocabularyTerms = vocabularyTerms;
     this.nestedEntriesConsumer = nestedEntriesConsumer;
     this.cdaEntry = cdaEntry;
@@ -78,19 +89,34 @@ public class EsDocBuilder {
    * Gets the ElasticSearch document of a CDAEntry.
    */
   public Map<String,Object> toEsDoc() {
-    cdaEntry.rawFields().forEach((field,value) -> {
-      Optional.ofNullable(cdaEntry.getField(field)).ifPresent(fieldValue -> {
-        Constants.CMAFieldType fieldType = contentTypeFields.getFieldType(field);
-        if (Constants.CMAFieldType.Link == fieldType) {
-          processLinkField((LocalizedResource)fieldValue, field);
-        } else if (Constants.CMAFieldType.Array == fieldType) { //block are processed differently
-          processArrayField((List<?>)fieldValue, field);
-        } else {
-          entries.put(field, contentTypeFields.getField(field).isLocalized()
-                             && !contentTypeFields.isCollapsible(field) ? value : fieldValue);
-        }
-      });
-    });
+    Map<String, Object> rawFields = cdaEntry.rawFields();
+    for (ContentTypeFields.FieldPlan fieldPlan : contentTypeFields.getFieldPlans()) {
+      String field = fieldPlan.getId();
+      Object value = rawFields.get(field);
+      Object fieldValue = value == null ? null : cdaEntry.getField(field);
+      if (fieldValue == null) {
+        continue;
+      }
+      switch (fieldPlan.getKind()) {
+        case ASSET_LINK:
+          entries.put(field, ((LocalizedResource) fieldValue).rawFields());
+          break;
+        case ENTRY_LINK:
+          processLinkField((CDAEntry) fieldValue, field);
+          break;
+        case ARRAY:
+          processArrayField((List<?>) fieldValue, field);
+          break;
+        case LOCALIZED_VALUE:
+          entries.put(field, value);
+          break;
+        case VALUE:
+          entries.put(field, fieldValue);
+          break;
+        default: //blocks are processed differently
+          break;
+      }
+    }
     entries.putAll(cdaEntry.attrs());
     //Updates the information from the meta field
     Meta.getMetaCreatedDate(cdaEntry).ifPresent(createdDate -> entries.replace("createdAt", createdDate));
@@ -131,23 +157,29 @@ public class EsDocBuilder {
   }
 
   /**
-   * Collects fields data from a single localized resource.
-   * @param resource Asset or CDAEntry to be processed
+   * Gets the ElasticSearch document of a CDAEntry serialized as JSON, ready to be sent in a bulk request.
+   */
+  public byte[] toJson() {
+    try {
+      return MAPPER.writeValueAsBytes(toEsDoc());
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Collects fields data from a single linked entry.
+   * @param fieldCdaEntry CDAEntry to be processed
    * @param field field name
    */
-  public void processLinkField(LocalizedResource resource, String field) {
-    if (ContentfulLinkType.Asset == contentTypeFields.getFieldLinkType(field)) {
-      entries.put(field,  resource.rawFields());
-    } else {
-      CDAEntry fieldCdaEntry = (CDAEntry)resource;
-      VocabularyBuilder vocabularyBuilder = new VocabularyBuilder(vocabularyTerms);
-      vocabularyBuilder.of(fieldCdaEntry)
-        .one(vocValue -> entries.put(field, vocValue))
-        .gbifRegion(gbifRegion -> entries.put(REGION_FIELD, gbifRegion));
-      if (vocabularyBuilder.isEmpty()) {
-        nestedEntriesConsumer.accept(fieldCdaEntry);
-        entries.put(field, getAssociatedEntryFields(fieldCdaEntry));
-      }
+  private void processLinkField(CDAEntry fieldCdaEntry, String field) {
+    VocabularyBuilder vocabularyBuilder = new VocabularyBuilder(vocabularyTerms);
+    vocabularyBuilder.of(fieldCdaEntry)
+      .one(vocValue -> entries.put(field, vocValue))
+      .gbifRegion(gbifRegion -> entries.put(REGION_FIELD, gbifRegion));
+    if (vocabularyBuilder.isEmpty()) {
+      nestedEntriesConsumer.accept(fieldCdaEntry);
+      entries.put(field, getLinkedEntryFields(fieldCdaEntry));
     }
   }
 
@@ -157,15 +189,13 @@ public class EsDocBuilder {
    * @param field field name
    */
   private void processArrayField(List<?> entryListValue, String field) {
-    if(!field.equalsIgnoreCase("blocks")) { //blocks are processed later
-      VocabularyBuilder vocabularyBuilder = new VocabularyBuilder(vocabularyTerms);
-      vocabularyBuilder.ofList(entryListValue)
-              .all(vocValues -> entries.put(field, vocValues))
-              .allGbifRegions(gbifRegions -> entries.put(REGION_FIELD, gbifRegions));
-      if (vocabularyBuilder.isEmpty()) {
-        nestedEntriesConsumer.accept(entryListValue);
-        entries.put(field, toListValues(entryListValue));
-      }
+    VocabularyBuilder vocabularyBuilder = new VocabularyBuilder(vocabularyTerms);
+    vocabularyBuilder.ofList(entryListValue)
+            .all(vocValues -> entries.put(field, vocValues))
+            .allGbifRegions(gbifRegions -> entries.put(REGION_FIELD, gbifRegions));
+    if (vocabularyBuilder.isEmpty()) {
+      nestedEntriesConsumer.accept(entryListValue);
+      entries.put(field, toListValues(entryListValue));
     }
   }
 
@@ -176,7 +206,7 @@ public class EsDocBuilder {
     return resources.stream()
       .flatMap(resource -> {
         if (CDAEntry.class.isInstance(resource)) {
-          return Stream.of(getAssociatedEntryFields((CDAEntry) resource));
+          return Stream.of(getLinkedEntryFields((CDAEntry) resource));
         }
         if (LocalizedResource.class.isInstance(resource)) {
           return Stream.of(((LocalizedResource)resource).rawFields());
@@ -190,49 +220,95 @@ public class EsDocBuilder {
 
   }
 
+  /**
+   * Fields of an entry linked from the indexed entry serialized as JSON, they are computed once per entry revision.
+   * Nested links are not resolved if the entry is found at the last include level, in that case the fields are not
+   * cached, so other documents get them resolved when they are available.
+   */
+  private RawValue getLinkedEntryFields(CDAEntry cdaEntry) {
+    RawValue cachedFields = linkedEntryCache.get(cdaEntry);
+    if (cachedFields != null) {
+      return cachedFields;
+    }
+    MutableBoolean resolved = new MutableBoolean(true);
+    RawValue fields = toRawJson(getAssociatedEntryFields(cdaEntry, resolved));
+    if (resolved.isTrue()) {
+      linkedEntryCache.put(cdaEntry, fields);
+    }
+    return fields;
+  }
+
+  private static RawValue toRawJson(Object value) {
+    try {
+      return new RawValue(MAPPER.writeValueAsString(value));
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
   /**
    * Associated entities are indexed using title, summary and id.
+   * @param resolved set to false if any nested link is not resolved
    */
-  private Map<String, Object> getAssociatedEntryFields(CDAEntry cdaEntry) {
+  private Map<String, Object> getAssociatedEntryFields(CDAEntry cdaEntry, MutableBoolean resolved) {
     Map<String, Object> fields = new LinkedHashMap<>();
     fields.put(ID_FIELD, cdaEntry.id());
-    fields.putAll(cdaEntry.rawFields().entrySet().stream()
-                    //Content types Header Block, Feature Block do not have to be handled as Links
-                    .filter(entry ->  (!cdaEntry.contentType().id().endsWith("Block") && LINKED_ENTRY_FIELDS.matcher(entry.getKey()).matches())  &&
-                                      cdaEntry.getField(entry.getKey()) != null)  //a project had a null url value
-                    .collect(Collectors.toMap(Map.Entry::getKey,
-                                              entry -> getValue(entry, cdaEntry))));
+    ContentTypeFields linkedContentTypeFields = ContentTypeFields.of(cdaEntry.contentType());
+    Map<String, Object> rawFields = cdaEntry.rawFields();
+    for (String field : linkedContentTypeFields.getLinkedEntryFields()) {
+      Object rawValue = rawFields.get(field);
+      //a project had a null url value
+      if (rawValue != null && cdaEntry.getField(field) != null) {
+        Object value = getValue(field, rawValue, cdaEntry, linkedContentTypeFields, resolved);
+        if (isUnresolvedLink(value)) {
+          resolved.setFalse();
+        }
+        fields.put(field, value);
+      }
+    }
     return fields;
   }
 
-  private Object getValue(Map.Entry<String,Object> entry, CDAEntry cdaEntry) {
-      Object value = cdaEntry.getField(entry.getKey());
+  private Object getValue(String field, Object rawValue, CDAEntry cdaEntry, ContentTypeFields cdaEntryFields,
+                          MutableBoolean resolved) {
+      Object value = cdaEntry.getField(field);
       if (value instanceof CDAEntry) {
         //if the nested value is country only the isoCode is extracted
         Optional<String> countryField = vocabularyTerms.countryCodeFieldOf((CDAEntry)value);
         if (countryField.isPresent()) {
             return ((CDAEntry)value).getField(countryField.get());
         }
-        return getAssociatedEntryFields((CDAEntry)value);
+        return getAssociatedEntryFields((CDAEntry)value, resolved);
       }
-      return isLocalized(entry.getKey(), cdaEntry.contentType())
-              ? entry.getValue()
-              : cdaEntry.getField(entry.getKey());
-  }
-
-
-  Set<String> getLocales(CDAEntry cdaEntry) {
-    return LOCALIZED_FIELDS.stream()
-              .filter(field -> cdaEntry.getField(field) != null && isLocalized(field, cdaEntry.contentType()))
-              .flatMap(field -> ((Map<String,Object>)cdaEntry.rawFields().get(field)).keySet().stream())
-              .collect(Collectors.toSet());
+      return cdaEntryFields.isLocalized(field) ? rawValue : value;
   }
 
   /**
-   * Is the fieldName localized in the CDAContentType.
+   * Is the value, or any of its elements or localized values, a link that was not resolved by the CDA client.
    */
-  private static boolean isLocalized(String fieldName, CDAContentType cdaContentType) {
-    return ContentTypeFields.of(cdaContentType).getField(fieldName).isLocalized();
+  private static boolean isUnresolvedLink(Object value) {
+    if (value instanceof Map) {
+      Object sys = ((Map<?,?>) value).get("sys");
+      if (sys instanceof Map && "Link".equals(((Map<?,?>) sys).get("type"))) {
+        return true;
+      }
+      return ((Map<?,?>) value).values().stream().anyMatch(EsDocBuilder::isUnresolvedLink);
+    }
+    if (value instanceof Collection) {
+      return ((Collection<?>) value).stream().anyMatch(EsDocBuilder::isUnresolvedLink);
+    }
+    return false;
+  }
+
+
+  Set<String> getLocales(CDAEntry cdaEntry) {
+    Set<String> locales = new HashSet<>();
+    for (String field : ContentTypeFields.of(cdaEntry.contentType()).getLocaleFields()) {
+      if (cdaEntry.getField(field) != null) {
+        locales.addAll(((Map<String,Object>)cdaEntry.rawFields().get(field)).keySet());
+      }
+    }
+    return locales;
   }
 
 }
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.contentful.crawl;
+
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+
+import com.contentful.java.cda.CDAEntry;
+import com.fasterxml.jackson.databind.util.RawValue;
+
+/**
+ * Crawl scoped cache of the indexed fields of linked entries serialized as JSON, it is shared by all the content types.
+ * Entries are identified by id and revision, so a changed entry is never served from the cache.
+ * Only fields with all their nested links resolved must be stored, the resolution of nested links depends on the
+ * include level where the entry is found.
+ */
+public class LinkedEntryCache {
+
+  private static final int CACHE_CAPACITY = 50_000;
+
+  private static final String REVISION = "revision";
+
+  private final Cache<String, RawValue> cache =
+    new Cache2kBuilder<String, RawValue>(){}
+      .eternal(true)
+      .entryCapacity(CACHE_CAPACITY)
+      .build();
+
+  /**
+   * Gets the serialized fields of a linked entry, null if the entry is not in the cache.
+   */
+  public RawValue get(CDAEntry cdaEntry) {
+    Object revision = cdaEntry.attrs().get(REVISION);
+    return revision == null ? null : cache.peek(key(cdaEntry, revision));
+  }
+
+  /**
+   * Stores the serialized fields of a linked entry, entries without revision are not stored.
+   */
+  public void put(CDAEntry cdaEntry, RawValue fields) {
+    Object revision = cdaEntry.attrs().get(REVISION);
+    if (revision != null) {
+      cache.put(key(cdaEntry, revision), fields);
+    }
+  }
+
+  private static String key(CDAEntry cdaEntry, Object revision) {
+    return cdaEntry.id() + ':' + revision;
+  }
+}
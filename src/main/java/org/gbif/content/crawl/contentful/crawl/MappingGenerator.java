@@ -13,9 +13,12 @@
  */
 package org.gbif.content.crawl.contentful.crawl;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -23,6 +26,9 @@ import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.contentful.java.cma.Constants.CMAFieldType;
 import com.contentful.java.cma.model.CMAContentType;
 import com.contentful.java.cma.model.CMAField;
@@ -36,6 +42,8 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
  */
 public class  MappingGenerator {
 
+  private static final Logger LOG = LoggerFactory.getLogger(MappingGenerator.class);
+
   private static final String KEYWORD = "keyword";
   private static final String TEXT = "text";
   private static final String NESTED = "nested";
@@ -303,7 +311,21 @@ public class  MappingGenerator {
    * }
    */
   public String getEsMapping(CMAContentType contentType) {
+    return getEsMapping(Collections.singletonList(contentType));
+  }
+
+  /**
+   * Generates a single mapping for a set of content types, it is used when all content types share an index.
+   * A field id used by more than one content type must have the same ES type and localization in all of them.
+   * @throws IllegalStateException listing the conflicting fields, if any
+   */
+  public String getEsMapping(Collection<CMAContentType> contentTypes) {
     Map<String, String> collapsedFields = new HashMap<>();
+    Set<String> templateFields = new HashSet<>();
+    //ES type and localization of each mapped field and the content type that defined it first
+    Map<String, String> fieldDefinitions = new HashMap<>();
+    Map<String, String> fieldContentTypes = new HashMap<>();
+    List<String> conflicts = new ArrayList<>();
     ObjectMapper mapper = new ObjectMapper();
     ObjectNode mapping = mapper.createObjectNode();
     ArrayNode dynamicTemplates = mapping.putArray("dynamic_templates");
@@ -319,24 +341,50 @@ public class  MappingGenerator {
     addMatchMapping(dynamicTemplates, "isoCode", KEYWORD);
     addNestedMapping(dynamicTemplates, "label", KEYWORD);
     addNestedMapping(dynamicTemplates, "url", KEYWORD);
-    contentType.getFields().stream()
+    contentTypes.forEach(contentType -> contentType.getFields().stream()
       .filter(cmaField -> !cmaField.isDisabled()).forEach(cmaField ->
       esType(cmaField).ifPresent(esType -> {
-        if (VOCABULARY.equals(esType)) {
+        String definition = fieldDefinition(cmaField, esType);
+        String firstDefinition = fieldDefinitions.putIfAbsent(cmaField.getId(), definition);
+        fieldContentTypes.putIfAbsent(cmaField.getId(), contentType.getName());
+        if (firstDefinition != null && !firstDefinition.equals(definition)) {
+          conflicts.add(cmaField.getId() + " (" + firstDefinition + " in " + fieldContentTypes.get(cmaField.getId())
+                        + ", " + definition + " in " + contentType.getName() + ")");
+        }
+        if (collapsedFields.containsKey(cmaField.getId()) || templateFields.contains(cmaField.getId())) {
+          LOG.debug("Field {} of content type {} is already mapped", cmaField.getId(), contentType.getName());
+        } else if (VOCABULARY.equals(esType)) {
           collapsedFields.put(cmaField.getId(), KEYWORD);
         } else if (isSimpleField(cmaField, esType)) {
           collapsedFields.put(cmaField.getId(), esType);
         } else if (!NESTED.equals(esType) && cmaField.isLocalized() && !cmaField.getName().equalsIgnoreCase("blocks")) { //localizable fields have nested elements
+          templateFields.add(cmaField.getId());
           addTemplateField("path_match", cmaField.getId(), cmaField.getId() + ".*", esType, dynamicTemplates);
         } else if (!cmaField.getName().equalsIgnoreCase("blocks")) {
+          templateFields.add(cmaField.getId());
           addTemplateField("match", cmaField.getId(), cmaField.getId(), esType, dynamicTemplates);
         }
       })
-    );
+    ));
+    if (!conflicts.isEmpty()) {
+      throw new IllegalStateException("Fields with conflicting mappings across content types: " + conflicts);
+    }
     addProperties(mapping, collapsedFields);
     return mapping.toPrettyString();
   }
 
+  /**
+   * Describes the ES type and localization of a field, fields sharing an id must have the same definition.
+   * Localization is ignored for fields whose localized values are collapsed.
+   */
+  private static String fieldDefinition(CMAField cmaField, String esType) {
+    if (VOCABULARY.equals(esType) || COLLAPSIBLE_TYPES.contains(cmaField.getType())
+        || COLLAPSIBLE_FIELDS.matcher(cmaField.getId()).matches()) {
+      return esType;
+    }
+    return esType + (cmaField.isLocalized() ? " localized" : " not localized");
+  }
+
   /**
    * Gets the ElasticSearch deduced type of the CDAField.
    */
@@ -13,9 +13,9 @@
  */
 package org.gbif.content.crawl.contentful.crawl;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.contentful.java.cda.CDAEntry;
 import com.contentful.java.cma.model.CMAContentType;
@@ -32,10 +32,10 @@ public class VocabularyTerms {
   //The country vocabulary must
   public static final String ISO_CODE_FIELD = "isoCode";
 
-  //Maps a vocabulary content id to its field that contains the term value
-  private final Map<String,String> cache = new HashMap<>();
+  //Maps a vocabulary content id to its field that contains the term value, it is read by concurrent crawlers
+  private final Map<String,String> cache = new ConcurrentHashMap<>();
 
-  private String countryContentTypeId;
+  private volatile String countryContentTypeId;
 
   /**
    * Loads the content type vocabulary mapping.
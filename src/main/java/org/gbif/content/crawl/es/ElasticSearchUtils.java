@@ -13,7 +13,10 @@
  */
 package org.gbif.content.crawl.es;
 
+import co.elastic.clients.elasticsearch._types.HealthStatus;
 import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch.cluster.HealthResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.indices.GetAliasResponse;
 import co.elastic.clients.elasticsearch.indices.Translog;
 import co.elastic.clients.elasticsearch.indices.TranslogDurability;
@@ -21,21 +24,33 @@ import co.elastic.clients.elasticsearch.indices.update_aliases.Action;
 import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.elasticsearch._types.mapping.TypeMapping;
 import co.elastic.clients.elasticsearch.indices.CreateIndexRequest;
 import co.elastic.clients.elasticsearch.indices.DeleteIndexRequest;
 import co.elastic.clients.elasticsearch.indices.ExistsRequest;
+import co.elastic.clients.json.JsonData;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
@@ -43,6 +58,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.CaseFormat;
+import com.google.common.base.Stopwatch;
 
 /**
  * Common ElasticSearch utility methods.
@@ -56,6 +72,19 @@ public class ElasticSearchUtils {
   //This an alias used for all active cms/content indices
   private static final String CONTENT_ALIAS = "content";
 
+  //Field that holds the content type of Contentful documents
+  private static final String CONTENT_TYPE_FIELD = "contentType";
+
+  private static final String MERGE_POLICY_PREFIX = "index.merge.policy.";
+
+  //Clients shared by all the components connecting to the same cluster
+  private static final Map<ContentCrawlConfiguration.ElasticSearch, ElasticsearchClient> ES_CLIENTS =
+    new ConcurrentHashMap<>();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(ElasticSearchUtils::closeEsClients, "es-clients-shutdown"));
+  }
+
   /**
    * Utility class must have private methods.
    */
@@ -63,14 +92,36 @@ public class ElasticSearchUtils {
     //NOP
   }
 
-  /** Creates ElasticSearch client using default connection settings. */
+  /**
+   * Gets the shared ElasticSearch client of a cluster configuration, it is created on first use.
+   * Clients are closed by {@link #closeEsClients()} or when the JVM shuts down.
+   */
   public static ElasticsearchClient buildEsClient(ContentCrawlConfiguration.ElasticSearch esClientConfiguration) {
+    return ES_CLIENTS.computeIfAbsent(esClientConfiguration, ElasticSearchUtils::createEsClient);
+  }
+
+  /**
+   * Closes all the shared ElasticSearch clients.
+   */
+  public static void closeEsClients() {
+    ES_CLIENTS.forEach((esClientConfiguration, esClient) -> {
+      try {
+        esClient._transport().close();
+      } catch (IOException ex) {
+        LOG.warn("Error closing ElasticSearch client of {}", esClientConfiguration.getHost(), ex);
+      }
+    });
+    ES_CLIENTS.clear();
+  }
+
+  /** Creates ElasticSearch client using a bounded connection pool. */
+  private static ElasticsearchClient createEsClient(ContentCrawlConfiguration.ElasticSearch esClientConfiguration) {
     String[] hostsUrl = esClientConfiguration.getHost().split(",");
     HttpHost[] hosts = new HttpHost[hostsUrl.length];
     int i = 0;
     for (String host : hostsUrl) {
       try {
-        URL url = new URL(host);
+        URL url = new URL(host.trim());
         hosts[i] = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
         i++;
       } catch (MalformedURLException e) {
@@ -78,7 +129,18 @@ public class ElasticSearchUtils {
       }
     }
 
+    LatencyAwareNodeSelector nodeSelector = new LatencyAwareNodeSelector();
     RestClientBuilder builder = RestClient.builder(hosts)
+        .setCompressionEnabled(esClientConfiguration.isCompression())
+        .setNodeSelector(nodeSelector)
+        .setFailureListener(nodeSelector.failureListener())
+        .setHttpClientConfigCallback(
+          httpClientBuilder ->
+            httpClientBuilder
+              .setMaxConnTotal(esClientConfiguration.getMaxConnTotal())
+              .setMaxConnPerRoute(esClientConfiguration.getMaxConnPerRoute())
+              .addInterceptorFirst((HttpRequestInterceptor) nodeSelector)
+              .addInterceptorLast((HttpResponseInterceptor) nodeSelector))
         .setRequestConfigCallback(
           requestConfigBuilder ->
             requestConfigBuilder
@@ -89,7 +151,7 @@ public class ElasticSearchUtils {
 
     RestClient restClient = builder.build();
     RestClientTransport transport = new RestClientTransport(restClient, new co.elastic.clients.json.jackson.JacksonJsonpMapper());
-    
+    LOG.info("ElasticSearch client created for {}", esClientConfiguration.getHost());
     return new ElasticsearchClient(transport);
   }
 
@@ -99,22 +161,45 @@ public class ElasticSearchUtils {
    */
   public static void createIndex(ElasticsearchClient esClient,
                                  String idxName, String source) {
+    createIndex(esClient, idxName, source, new ContentCrawlConfiguration.IndexProfile(), 0);
+  }
+
+  /**
+   * Creates an ElasticSearch index using the build settings of a profile, an existing index is removed.
+   * The number of shards is calculated from the expected number of documents, 0 if it is unknown.
+   * If the profile declares a query profile the mapping is optimized for it.
+   */
+  public static void createIndex(ElasticsearchClient esClient, String idxName, String source,
+                                 ContentCrawlConfiguration.IndexProfile profile, long expectedDocuments) {
     try {
-      LOG.info("Index into Elasticsearch Index {} ", idxName);
+      MappingOptimizer mappingOptimizer =
+        profile.getQueryProfile() != null ? new MappingOptimizer(profile.getQueryProfile()) : null;
+      String indexMapping = mappingOptimizer != null ? mappingOptimizer.optimize(source) : source;
+      Map<String, JsonData> sortSettings =
+        mappingOptimizer != null ? mappingOptimizer.indexSortSettings(indexMapping) : new HashMap<>();
+      int shards = numberOfShards(profile, expectedDocuments);
+      LOG.info("Index into Elasticsearch Index {} using {} shards for {} expected documents", idxName, shards,
+               expectedDocuments);
       //create ES idx if it doesn't exist
       if (esClient.indices().exists(new ExistsRequest.Builder().index(idxName).build()).value()) {
         esClient.indices().delete(new DeleteIndexRequest.Builder().index(idxName).build());
       }
-      
+
       CreateIndexRequest.Builder createIndexRequestBuilder = new CreateIndexRequest.Builder()
           .index(idxName)
-          .mappings(TypeMapping.of(m -> m.withJson(new java.io.StringReader(source))))
-          .settings(s -> s
-              .refreshInterval(Time.of(t -> t.time("-1")))
-              .numberOfShards("1")
-              .numberOfReplicas("0")
-              .translog(Translog.of(t -> t.durability(TranslogDurability.Async))));
-      
+          .mappings(TypeMapping.of(m -> m.withJson(new java.io.StringReader(indexMapping))))
+          .settings(s -> {
+              s.refreshInterval(Time.of(t -> t.time("-1")))
+                .numberOfShards(String.valueOf(shards))
+                .numberOfReplicas("0")
+                .codec(profile.getCodec())
+                .translog(Translog.of(t -> t.durability(TranslogDurability.Async)));
+              profile.getMergePolicy()
+                .forEach((setting, value) -> s.otherSettings(MERGE_POLICY_PREFIX + setting, JsonData.of(value)));
+              sortSettings.forEach(s::otherSettings);
+              return s;
+          });
+
       esClient.indices().create(createIndexRequestBuilder.build());
     } catch (IOException ex) {
       LOG.error("Error creating index", ex);
@@ -123,91 +208,250 @@ public class ElasticSearchUtils {
   }
 
   /**
-   * Creates, if it doesn't exist, an ElasticSearch index that matches the name of the contentType.
-   * If the flag configuration.contentful.deleteIndex is ON and the index exist, it will be removed.
+   * Number of primary shards needed to hold the expected documents, at least 1 and at most profile.maxShards.
    */
-  public static void createIndex(ElasticsearchClient esClient, ContentCrawlConfiguration.IndexBuild configuration,
-                                 String source) {
-    createIndex(esClient, getEsIndexingIdxName(configuration.getEsIndexName()), source);
+  private static int numberOfShards(ContentCrawlConfiguration.IndexProfile profile, long expectedDocuments) {
+    long shards = (expectedDocuments + profile.getDocsPerShard() - 1) / profile.getDocsPerShard();
+    return (int) Math.max(1, Math.min(profile.getMaxShards(), shards));
   }
 
   /**
-   * This method removes all indexes associated with the alias and associates the alias to toIdx.
+   * Applies the serving settings of the profile to an index that has been built: search settings, force merge,
+   * replicas, health and warm up.
    */
-  public static void swapIndexToAlias(
+  public static void prepareForServing(
       ElasticsearchClient esClient,
-      String alias,
       String toIdx,
-      ContentCrawlConfiguration.IndexBuild indexConfig
+      ContentCrawlConfiguration.IndexBuild indexConfig,
+      ContentCrawlConfiguration.IndexProfile profile
   ) {
     try {
-      LOG.info("Swapping alias '{}' to point to index '{}'", alias, toIdx);
+      LOG.info("Preparing index '{}' to be served", toIdx);
 
       // Apply search-specific settings to the target index
       esClient.indices().putSettings(ps -> ps
           .index(toIdx)
           .settings(s -> s
               .refreshInterval(Time.of(t -> t.time("1s")))
-              .numberOfReplicas("0")
               .maxResultWindow(indexConfig.getMaxResultWindow())
+              .translog(Translog.of(t -> t.durability(TranslogDurability.Request)))
           )
       );
 
-      // Force merge to 1 segment per index for small indexes
-      esClient.indices().forcemerge(b -> b
+      // Merges before adding replicas, so the merged segments are the ones copied to them
+      forceMerge(esClient, toIdx, profile);
+
+      esClient.indices().putSettings(ps -> ps
           .index(toIdx)
-          .maxNumSegments(1L)
+          .settings(s -> s.numberOfReplicas(String.valueOf(profile.getReplicas())))
       );
 
-      // Get all existing indices for the alias and prepare removal actions
-      List<Action> actions = getRemoveIndexActions(esClient, alias);
+      // The alias is not moved until the new index is healthy and warm
+      waitForHealth(esClient, toIdx, profile);
+      warmUp(esClient, toIdx, profile);
+    } catch (Exception ex) {
+      LOG.error("Failed to prepare index '{}': {}", toIdx, ex.getMessage());
+      throw new IllegalStateException("Failed to prepare index " + toIdx, ex);
+    }
+  }
 
-      // Add new index to both aliases
-      actions.add(Action.of(a -> a
+  /**
+   * Points each alias to its new index and adds the new indices to the content alias in a single atomic call.
+   * Indices previously associated with the aliases are removed.
+   * @param aliasIndices new index by alias
+   */
+  public static void swapIndicesToAliases(ElasticsearchClient esClient, Map<String, String> aliasIndices) {
+    swapIndicesToAliases(esClient, aliasIndices, Collections.emptyMap());
+  }
+
+  /**
+   * Points the alias of a consolidated index to toIdx, adds toIdx to the content alias and makes the alias of each
+   * content type a filtered alias of toIdx, all in a single atomic call.
+   * Indices previously associated with these aliases are removed.
+   * @param contentTypeAliases value of the contentType field by alias
+   * @param routed if the documents of each content type are routed by their contentType value
+   */
+  public static void swapConsolidatedIndexToAliases(ElasticsearchClient esClient, String alias, String toIdx,
+                                                    Map<String, String> contentTypeAliases, boolean routed) {
+    try {
+      LOG.info("Swapping alias {} and content type aliases {} to index {}", alias, contentTypeAliases.keySet(), toIdx);
+
+      Set<String> oldIndices = new LinkedHashSet<>(getAliasIndices(esClient, alias));
+      contentTypeAliases.keySet().forEach(contentTypeAlias -> oldIndices.addAll(getAliasIndices(esClient,
+                                                                                                 contentTypeAlias)));
+      List<Action> actions = new ArrayList<>();
+      oldIndices.forEach(idx -> actions.add(Action.of(a -> a.removeIndex(remove -> remove.index(idx)))));
+
+      actions.add(Action.of(a -> a.add(add -> add.index(toIdx).alias(alias).isWriteIndex(true))));
+      actions.add(Action.of(a -> a.add(add -> add.index(toIdx).alias(CONTENT_ALIAS).isWriteIndex(false))));
+      contentTypeAliases.forEach((contentTypeAlias, contentType) -> actions.add(Action.of(a -> a
+          .add(add -> add.index(toIdx)
+                         .alias(contentTypeAlias)
+                         .filter(f -> f.term(t -> t.field(CONTENT_TYPE_FIELD).value(contentType)))
+                         .routing(routed ? contentType : null))
+      )));
+
+      esClient.indices().updateAliases(ua -> ua.actions(actions));
+
+      LOG.info("Successfully swapped alias {} to index {}", alias, toIdx);
+    } catch (Exception ex) {
+      LOG.error("Failed to swap alias {} to index {}: {}", alias, toIdx, ex.getMessage());
+      throw new IllegalStateException("Failed to swap aliases", ex);
+    }
+  }
+
+  /**
+   * Points each alias to its new index in a single atomic call, only the indices of aliasIndices are added to the
+   * content alias. Indices previously associated with the aliases are removed.
+   * @param aliasIndices new index by alias
+   * @param auxiliaryAliasIndices new index by alias of indices that don't hold content, i.e.: statistics
+   */
+  public static void swapIndicesToAliases(ElasticsearchClient esClient, Map<String, String> aliasIndices,
+                                          Map<String, String> auxiliaryAliasIndices) {
+    try {
+      LOG.info("Swapping aliases to indices {} {}", aliasIndices, auxiliaryAliasIndices);
+
+      // Get all existing indices for the aliases and prepare removal actions
+      Set<String> oldIndices = new LinkedHashSet<>();
+      aliasIndices.keySet().forEach(alias -> oldIndices.addAll(getAliasIndices(esClient, alias)));
+      auxiliaryAliasIndices.keySet().forEach(alias -> oldIndices.addAll(getAliasIndices(esClient, alias)));
+      List<Action> actions = new ArrayList<>();
+      oldIndices.forEach(idx -> actions.add(Action.of(a -> a.removeIndex(remove -> remove.index(idx)))));
+
+      auxiliaryAliasIndices.forEach((alias, toIdx) -> actions.add(Action.of(a -> a
           .add(add -> add.index(toIdx).alias(alias).isWriteIndex(true))
-      ));
+      )));
 
-      // Add content alias
-      actions.add(Action.of(a -> a
-          .add(add -> add.index(toIdx).alias(CONTENT_ALIAS).isWriteIndex(false))
-      ));
+      aliasIndices.forEach((alias, toIdx) -> {
+        // Add new index to both aliases
+        actions.add(Action.of(a -> a
+            .add(add -> add.index(toIdx).alias(alias).isWriteIndex(true))
+        ));
+
+        // Add content alias
+        actions.add(Action.of(a -> a
+            .add(add -> add.index(toIdx).alias(CONTENT_ALIAS).isWriteIndex(false))
+        ));
+      });
 
       // Execute all alias operations in a single atomic call
       esClient.indices().updateAliases(ua -> ua.actions(actions));
 
-      LOG.info("Successfully swapped alias '{}' to point to index '{}'", alias, toIdx);
+      LOG.info("Successfully swapped aliases to indices {} {}", aliasIndices, auxiliaryAliasIndices);
     } catch (Exception ex) {
-      LOG.error("Failed to swap alias '{}' to index '{}': {}", alias, toIdx, ex.getMessage());
+      LOG.error("Failed to swap aliases to indices {} {}: {}", aliasIndices, auxiliaryAliasIndices, ex.getMessage());
       throw new IllegalStateException("Failed to swap aliases", ex);
     }
   }
 
   /**
-   * Gets removal actions for all existing indices associated with the given alias.
+   * Runs a force merge as a background task and polls it until it completes or the profile timeout expires.
+   * Large indices can take longer to merge than the HTTP timeouts of the client.
+   */
+  private static void forceMerge(ElasticsearchClient esClient, String idxName,
+                                 ContentCrawlConfiguration.IndexProfile profile) throws IOException, InterruptedException {
+    if (profile.getForceMergeSegments() <= 0) {
+      return;
+    }
+    String taskId = esClient.indices().forcemerge(b -> b
+        .index(idxName)
+        .maxNumSegments((long) profile.getForceMergeSegments())
+        .waitForCompletion(false)
+    ).task();
+    LOG.info("Force merging index '{}' to {} segments, task {}", idxName, profile.getForceMergeSegments(), taskId);
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    while (!esClient.tasks().get(g -> g.taskId(taskId)).completed()) {
+      if (stopwatch.elapsed(TimeUnit.MINUTES) >= profile.getForceMergeTimeout()) {
+        LOG.warn("Force merge of index '{}' has not finished after {} minutes, it continues in the background",
+                 idxName, profile.getForceMergeTimeout());
+        return;
+      }
+      TimeUnit.SECONDS.sleep(profile.getForceMergePollInterval());
+    }
+    LOG.info("Index '{}' force merged in {} seconds", idxName, stopwatch.elapsed(TimeUnit.SECONDS));
+  }
+
+  /**
+   * Waits until the index reaches the health status of the profile.
+   * Green is lowered to yellow when the cluster has not enough data nodes to allocate all the replicas.
+   */
+  private static void waitForHealth(ElasticsearchClient esClient, String idxName,
+                                    ContentCrawlConfiguration.IndexProfile profile) throws IOException {
+    HealthStatus requiredStatus = Arrays.stream(HealthStatus.values())
+      .filter(healthStatus -> healthStatus.jsonValue().equalsIgnoreCase(profile.getWaitForStatus()))
+      .findFirst()
+      .orElseThrow(() -> new IllegalArgumentException("Unknown health status " + profile.getWaitForStatus()));
+    HealthStatus status = requiredStatus;
+    if (HealthStatus.Green == requiredStatus) {
+      int dataNodes = esClient.cluster().health(h -> h.index(idxName)).numberOfDataNodes();
+      if (dataNodes <= profile.getReplicas()) {
+        LOG.warn("Index '{}' has {} replicas but the cluster has {} data nodes, waiting for yellow instead of green",
+                 idxName, profile.getReplicas(), dataNodes);
+        status = HealthStatus.Yellow;
+      }
+    }
+    HealthStatus expectedStatus = status;
+    HealthResponse health = esClient.cluster().health(h -> h
+        .index(idxName)
+        .waitForStatus(expectedStatus)
+        .timeout(Time.of(t -> t.time(profile.getHealthTimeout() + "s")))
+    );
+    if (health.timedOut()) {
+      throw new IllegalStateException("Index " + idxName + " is " + health.status().jsonValue() + " after "
+                                      + profile.getHealthTimeout() + " seconds, expected " + expectedStatus.jsonValue());
+    }
+    LOG.info("Index '{}' health is {}", idxName, health.status().jsonValue());
+  }
+
+  /**
+   * Runs the warm up queries of the profile against the index, so caches are loaded before it receives traffic.
+   * The latency of the last round is checked against the budget of the profile, exceeding it is only logged unless
+   * the profile is strict.
+   */
+  private static void warmUp(ElasticsearchClient esClient, String idxName,
+                             ContentCrawlConfiguration.IndexProfile profile) throws IOException {
+    if (profile.getWarmUpQueries().isEmpty()) {
+      return;
+    }
+    long maxLatency = 0;
+    for (int round = 1; round <= profile.getWarmUpRounds(); round++) {
+      maxLatency = 0;
+      for (String query : profile.getWarmUpQueries()) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        esClient.search(SearchRequest.of(r -> r.index(idxName).withJson(new StringReader(query))), Void.class);
+        maxLatency = Math.max(maxLatency, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+      }
+    }
+    LOG.info("Index '{}' warmed up with {} queries, slowest query took {} ms", idxName,
+             profile.getWarmUpQueries().size(), maxLatency);
+    if (profile.getWarmUpLatencyBudget() > 0 && maxLatency > profile.getWarmUpLatencyBudget()) {
+      String message = "Warm up query on index " + idxName + " took " + maxLatency + " ms, budget is "
+                       + profile.getWarmUpLatencyBudget() + " ms";
+      if (profile.isStrictWarmUpLatencyBudget()) {
+        throw new IllegalStateException(message);
+      }
+      LOG.warn(message);
+    }
+  }
+
+  /**
+   * Gets all existing indices associated with the given alias.
    * @param esClient Elasticsearch client
    * @param alias Alias name
-   * @return List of actions to remove old indices from the alias
+   * @return indices of the alias, empty if the alias doesn't exist
    */
-  private static List<Action> getRemoveIndexActions(ElasticsearchClient esClient, String alias) {
-    List<Action> actions = new ArrayList<>();
-    
+  private static Set<String> getAliasIndices(ElasticsearchClient esClient, String alias) {
     try {
       // Get all indices currently associated with the alias
       GetAliasResponse aliasResponse = esClient.indices().getAlias(g -> g.name(alias));
-      
-      // Remove all existing indexes of that alias
-      aliasResponse.aliases().forEach((idx, indexAliases) -> {
-        actions.add(Action.of(a -> a
-            .removeIndex(remove -> remove.index(idx))
-        ));
-        LOG.info("Removing old index '{}' from alias '{}'", idx, alias);
-      });
+      aliasResponse.aliases().keySet()
+        .forEach(idx -> LOG.info("Removing old index '{}' from alias '{}'", idx, alias));
+      return aliasResponse.aliases().keySet();
     } catch (Exception e) {
       // Alias might not exist yet, which is fine
       LOG.debug("Alias '{}' does not exist or has no indices, proceeding with new index", alias);
+      return Collections.emptySet();
     }
-    
-    return actions;
   }
 
   /**
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.es;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.RestClient;
+
+/**
+ * Selects the nodes whose average response time is within a factor of the fastest node.
+ * Response times of search and get requests are measured by the request and response interceptors of the same
+ * instance, other requests like bulk loads, force merges or health checks are not representative and are ignored.
+ * Failed requests, reported by {@link #failureListener()}, count as very slow responses.
+ * Nodes not selected for a while are selected again, so their response time can be measured again.
+ */
+class LatencyAwareNodeSelector implements NodeSelector, HttpRequestInterceptor, HttpResponseInterceptor {
+
+  //Weight of the last response in the average
+  private static final double ALPHA = 0.2;
+
+  //Nodes slower than SLOW_FACTOR times the fastest one are skipped
+  private static final double SLOW_FACTOR = 2.0;
+
+  //Time after which a skipped node is selected again
+  private static final long PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  //Response time recorded for a failed request
+  private static final double FAILURE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  //Search endpoints, requested using GET or POST
+  private static final Pattern SEARCH_ENDPOINTS = Pattern.compile(".*/(_search|_msearch|_count|_mget)(/.*)?");
+
+  //Document endpoints, only GET requests read documents
+  private static final Pattern GET_ENDPOINTS = Pattern.compile(".*/(_doc|_source)/.+");
+
+  private static final String START_ATTRIBUTE = LatencyAwareNodeSelector.class.getName() + ".start";
+
+  /**
+   * Moving average of the response time of a node, instances are immutable and replaced on each update.
+   */
+  private static final class Latency {
+    private final double average;
+    private final long lastUpdate;
+
+    private Latency(double average, long lastUpdate) {
+      this.average = average;
+      this.lastUpdate = lastUpdate;
+    }
+  }
+
+  private final Map<HttpHost, Latency> latencies = new ConcurrentHashMap<>();
+
+  @Override
+  public void process(HttpRequest request, HttpContext context) {
+    if (isMeasured(request)) {
+      context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+    }
+  }
+
+  @Override
+  public void process(HttpResponse response, HttpContext context) {
+    Object start = context.getAttribute(START_ATTRIBUTE);
+    HttpHost host = HttpClientContext.adapt(context).getTargetHost();
+    if (start != null && host != null) {
+      record(host, System.nanoTime() - (Long) start);
+    }
+  }
+
+  /**
+   * Listener that records the failed requests of a node.
+   */
+  RestClient.FailureListener failureListener() {
+    return new RestClient.FailureListener() {
+      @Override
+      public void onFailure(Node node) {
+        record(node.getHost(), FAILURE_NANOS);
+      }
+    };
+  }
+
+  /**
+   * Only search and get requests are measured.
+   */
+  private static boolean isMeasured(HttpRequest request) {
+    String method = request.getRequestLine().getMethod();
+    String uri = request.getRequestLine().getUri();
+    int query = uri.indexOf('?');
+    String path = query < 0 ? uri : uri.substring(0, query);
+    if ("GET".equals(method)) {
+      return SEARCH_ENDPOINTS.matcher(path).matches() || GET_ENDPOINTS.matcher(path).matches();
+    }
+    return "POST".equals(method) && SEARCH_ENDPOINTS.matcher(path).matches();
+  }
+
+  /**
+   * Adds a response time to the average of a node, updates are atomic per node.
+   */
+  private void record(HttpHost host, double elapsed) {
+    long now = System.nanoTime();
+    latencies.compute(host, (h, latency) -> new Latency(latency == null
+                                                          ? elapsed
+                                                          : ALPHA * elapsed + (1 - ALPHA) * latency.average,
+                                                        now));
+  }
+
+  @Override
+  public void select(Iterable<Node> nodes) {
+    double fastest = Double.MAX_VALUE;
+    for (Node node : nodes) {
+      Latency latency = latencies.get(node.getHost());
+      if (latency != null) {
+        fastest = Math.min(fastest, latency.average);
+      }
+    }
+    long now = System.nanoTime();
+    Iterator<Node> iterator = nodes.iterator();
+    while (iterator.hasNext()) {
+      Latency latency = latencies.get(iterator.next().getHost());
+      if (latency != null && latency.average > fastest * SLOW_FACTOR
+          && now - latency.lastUpdate < PROBE_INTERVAL_NANOS) {
+        iterator.remove();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LATENCY_AWARE";
+  }
+}
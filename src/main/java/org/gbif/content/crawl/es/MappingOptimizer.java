@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.es;
+
+import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import co.elastic.clients.json.JsonData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Adapts an index mapping to the declared usage of its fields:
+ *  - doc_values are disabled in the declared fields that are neither facets nor sort fields.
+ *  - norms are disabled in text fields that are not scored.
+ *  - only the declared search text fields are copied into search_text.
+ *  - excluded fields are removed from the _source.
+ *  - the index is sorted by the first sort fields.
+ */
+public class MappingOptimizer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappingOptimizer.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  //Field types that support doc_values
+  private static final Pattern DOC_VALUES_TYPES =
+    Pattern.compile("keyword|boolean|date|long|integer|short|byte|double|float|half_float|scaled_float|ip");
+
+  private static final Pattern WILDCARDS = Pattern.compile("^\\*\\.|\\.\\*$|\\*");
+
+  private static final String PROPERTIES = "properties";
+  private static final String TYPE = "type";
+
+  private final ContentCrawlConfiguration.QueryProfile queryProfile;
+
+  //Fields that need doc_values
+  private final Set<String> docValuesFields = new HashSet<>();
+
+  //Fields whose doc_values are disabled
+  private final Set<String> noDocValuesFields = new HashSet<>();
+
+  //Sort fields and their orders
+  private final Map<String, String> sortOrders = new HashMap<>();
+
+  public MappingOptimizer(ContentCrawlConfiguration.QueryProfile queryProfile) {
+    this.queryProfile = queryProfile;
+    docValuesFields.addAll(queryProfile.getFacetFields());
+    queryProfile.getSortFields().forEach(sortField -> {
+      String[] fieldOrder = sortField.split(":");
+      docValuesFields.add(fieldOrder[0]);
+      sortOrders.put(fieldOrder[0], fieldOrder.length > 1 ? fieldOrder[1].toLowerCase() : "asc");
+    });
+    queryProfile.getNoDocValuesFields().forEach(field -> {
+      if (docValuesFields.contains(field)) {
+        LOG.warn("Field {} is used as facet or sort field, its doc_values are kept", field);
+      } else {
+        noDocValuesFields.add(field);
+      }
+    });
+  }
+
+  /**
+   * Optimizes a mapping, the fields in dynamic templates are matched using their match/path_match patterns.
+   */
+  public String optimize(String mapping) {
+    try {
+      ObjectNode root = (ObjectNode) MAPPER.readTree(mapping);
+      if (root.has(PROPERTIES)) {
+        optimizeProperties((ObjectNode) root.get(PROPERTIES), "");
+      }
+      if (root.has("dynamic_templates")) {
+        root.get("dynamic_templates").forEach(template -> template.fields().forEachRemaining(entry -> {
+          JsonNode match = entry.getValue().has("path_match") ? entry.getValue().get("path_match")
+                                                              : entry.getValue().get("match");
+          JsonNode fieldMapping = entry.getValue().get("mapping");
+          if (match != null && fieldMapping instanceof ObjectNode
+              && !"regex".equals(entry.getValue().path("match_pattern").asText())) {
+            optimizeField((ObjectNode) fieldMapping, WILDCARDS.matcher(match.asText()).replaceAll(""));
+          }
+        }));
+      }
+      if (!queryProfile.getSourceExcludes().isEmpty()) {
+        root.putObject("_source").putArray("excludes").addAll(
+          queryProfile.getSourceExcludes().stream().map(MAPPER.getNodeFactory()::textNode).toList());
+      }
+      return root.toPrettyString();
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Invalid mapping", ex);
+    }
+  }
+
+  /**
+   * Index sort settings of the leading sort fields mapped in the properties of the mapping.
+   * A field that is not explicitly mapped can't be used to sort the index, so sorting stops at the first one.
+   */
+  public Map<String, JsonData> indexSortSettings(String mapping) {
+    try {
+      JsonNode properties = MAPPER.readTree(mapping).path(PROPERTIES);
+      List<String> fields = new ArrayList<>();
+      List<String> orders = new ArrayList<>();
+      Iterator<String> sortFields = queryProfile.getSortFields().iterator();
+      while (sortFields.hasNext() && fields.size() < queryProfile.getIndexSortFields()) {
+        String field = sortFields.next().split(":")[0];
+        if (!DOC_VALUES_TYPES.matcher(properties.path(field).path(TYPE).asText()).matches()) {
+          LOG.info("Field {} is not mapped with doc_values, it can't be used to sort the index", field);
+          break;
+        }
+        fields.add(field);
+        orders.add(sortOrders.get(field));
+      }
+      Map<String, JsonData> settings = new HashMap<>();
+      if (!fields.isEmpty()) {
+        settings.put("index.sort.field", JsonData.of(fields));
+        settings.put("index.sort.order", JsonData.of(orders));
+      }
+      return settings;
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Invalid mapping", ex);
+    }
+  }
+
+  private void optimizeProperties(ObjectNode properties, String path) {
+    properties.fields().forEachRemaining(entry -> {
+      if (entry.getValue() instanceof ObjectNode) {
+        ObjectNode fieldMapping = (ObjectNode) entry.getValue();
+        String fieldPath = path + entry.getKey();
+        if (fieldMapping.has(PROPERTIES)) {
+          optimizeProperties((ObjectNode) fieldMapping.get(PROPERTIES), fieldPath + '.');
+        } else {
+          optimizeField(fieldMapping, fieldPath);
+        }
+      }
+    });
+  }
+
+  private void optimizeField(ObjectNode fieldMapping, String field) {
+    if (!queryProfile.getSearchTextFields().isEmpty() && fieldMapping.has("copy_to")
+        && !queryProfile.getSearchTextFields().contains(field)) {
+      fieldMapping.remove("copy_to");
+    }
+    String type = fieldMapping.path(TYPE).asText();
+    boolean indexed = fieldMapping.path("index").asBoolean(true);
+    if (indexed && DOC_VALUES_TYPES.matcher(type).matches() && noDocValuesFields.contains(field)) {
+      fieldMapping.put("doc_values", false);
+    } else if ("text".equals(type) && !queryProfile.getFullTextFields().contains(field)) {
+      fieldMapping.put("norms", false);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A response handler that completes the handling of responses asynchronously.
+ * The response is considered in-flight until the returned stage completes.
+ */
+interface AsyncResponseHandler extends ResponseHandler {
+
+  CompletionStage<Void> handleResponseAsync(MendeleyResponse response);
+
+  @Override
+  default void handleResponse(MendeleyResponse response) throws Exception {
+    handleResponseAsync(response).toCompletableFuture().get();
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Citing documents of each dataset, publisher and network, broken down by year and relevance.
+ * Each thread updates its own rollups, which are merged when they are read.
+ */
+class CitationRollups {
+
+  //Rollup type by the enriched document field that holds the cited keys
+  static final Map<String, String> CITED_FIELDS = Map.of("gbifDatasetKey", "dataset",
+                                                                 "publishingOrganizationKey", "publisher",
+                                                                 "gbifNetworkKey", "network");
+
+  static final String ID_FL = "id";
+  static final String YEAR_FL = "year";
+  static final String RELEVANCE_FL = "relevance";
+
+  /**
+   * Citations of a single dataset, publisher or network.
+   */
+  private static class Rollup {
+    private final Set<String> documentIds = new TreeSet<>();
+    private final Map<String, Long> years = new TreeMap<>();
+    private final Map<String, Long> relevance = new TreeMap<>();
+
+    private void mergeInto(Rollup target) {
+      target.documentIds.addAll(documentIds);
+      years.forEach((year, count) -> target.years.merge(year, count, Long::sum));
+      relevance.forEach((value, count) -> target.relevance.merge(value, count, Long::sum));
+    }
+  }
+
+  //Rollups of each thread keyed by type:key
+  private final List<Map<String, Rollup>> allRollups = new CopyOnWriteArrayList<>();
+
+  private final ThreadLocal<Map<String, Rollup>> threadRollups = ThreadLocal.withInitial(() -> {
+    Map<String, Rollup> rollups = new HashMap<>();
+    allRollups.add(rollups);
+    return rollups;
+  });
+
+  /**
+   * Identifier of the rollup of a cited key, as used in the documents returned by {@link #toDocuments()}.
+   */
+  static String rollupId(String field, String key) {
+    return CITED_FIELDS.get(field) + ':' + key;
+  }
+
+  /**
+   * Adds an enriched document to the rollups of the datasets, publishers and networks it cites.
+   */
+  void add(JsonNode document) {
+    JsonNode id = document.get(ID_FL);
+    if (id == null) {
+      return;
+    }
+    Map<String, Rollup> rollups = threadRollups.get();
+    CITED_FIELDS.keySet().forEach(field -> {
+      JsonNode keys = document.get(field);
+      if (keys != null && keys.isArray()) {
+        keys.forEach(key -> {
+          Rollup rollup = rollups.computeIfAbsent(rollupId(field, key.asText()), k -> new Rollup());
+          //a document citing several datasets of the same publisher counts once for the publisher
+          if (rollup.documentIds.add(id.asText())) {
+            JsonNode year = document.get(YEAR_FL);
+            if (year != null && !year.isNull()) {
+              rollup.years.merge(year.asText(), 1L, Long::sum);
+            }
+            JsonNode relevance = document.get(RELEVANCE_FL);
+            if (relevance != null && relevance.isArray()) {
+              relevance.forEach(value -> rollup.relevance.merge(value.asText(), 1L, Long::sum));
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Merges the rollups of all threads, it must be called once all the documents have been added.
+   * @return one document per dataset, publisher and network, keyed by type:key
+   */
+  Map<String, ObjectNode> toDocuments() {
+    Map<String, Rollup> merged = new HashMap<>();
+    allRollups.forEach(rollups -> rollups.forEach((id, rollup) -> rollup.mergeInto(merged.computeIfAbsent(id, k -> new Rollup()))));
+    Map<String, ObjectNode> documents = new HashMap<>();
+    merged.forEach((id, rollup) -> {
+      ObjectNode document = JsonNodeFactory.instance.objectNode();
+      int separator = id.indexOf(':');
+      document.put("type", id.substring(0, separator));
+      document.put("key", id.substring(separator + 1));
+      document.put("citations", rollup.documentIds.size());
+      rollup.documentIds.forEach(document.putArray("documentIds")::add);
+      ObjectNode years = document.putObject("years");
+      rollup.years.forEach(years::put);
+      ObjectNode relevance = document.putObject("relevance");
+      rollup.relevance.forEach(relevance::put);
+      documents.put(id, document);
+    });
+    return documents;
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import java.util.Collection;
+
+/**
+ * Resolves the datasets and downloads cited through a GBIF DOI.
+ */
+interface CitationSource {
+
+  /**
+   * Gets the dataset information of GBIF registered DOI.
+   * @param doi to lookup
+   * @return dataset citations associated to a DOI
+   */
+  Collection<DatasetUsagesCollector.DatasetCitation> getCitations(String doi);
+
+  /**
+   * Is the DOI a registered derived dataset.
+   */
+  boolean isDerivedDataset(String doi);
+}
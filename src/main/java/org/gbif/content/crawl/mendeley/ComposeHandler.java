@@ -13,64 +13,193 @@
  */
 package org.gbif.content.crawl.mendeley;
 
-import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
-
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Compose handler, used to  encapsulates all response handlers.
+ * Each handler runs on its own executor with a bounded inbox of in-flight responses, when the inbox of a handler is
+ * full {@link #handleResponse(MendeleyResponse)} blocks, so a slow handler throttles the producer of responses.
+ * Handlers fail independently: a handler that fails stops receiving responses and is rolled back on finish, the
+ * other handlers are finished normally.
  */
 public class ComposeHandler  implements ResponseHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(ComposeHandler.class);
 
-  private final List<ResponseHandler> handlers = Lists.newArrayList();
+  private final List<HandlerLane> lanes = Lists.newArrayList();
+
+  /**
+   * Operation of a handler that can throw checked exceptions.
+   */
+  @FunctionalInterface
+  private interface HandlerOperation {
+    void run() throws Exception;
+  }
+
+  /**
+   * Dedicated executor and bounded inbox of a single handler.
+   */
+  private static class HandlerLane {
+
+    private final ResponseHandler handler;
+    private final String name;
+    private final ExecutorService executor;
+    private final Semaphore inbox;
+    private final int inboxSize;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    HandlerLane(ResponseHandler handler, int inboxSize) {
+      this.handler = handler;
+      this.inboxSize = inboxSize;
+      name = handler.getClass().getSimpleName();
+      inbox = new Semaphore(inboxSize);
+      executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                                                     .setNameFormat(name + "-%d")
+                                                     .build());
+    }
+
+    /**
+     * Submits a response, blocking while the inbox is full. Responses are discarded once the handler has failed.
+     */
+    void submit(MendeleyResponse response) throws InterruptedException {
+      if (failure.get() != null) {
+        return;
+      }
+      inbox.acquire();
+      CompletableFuture<Void> handling;
+      if (handler instanceof AsyncResponseHandler) {
+        handling = CompletableFuture.supplyAsync(() -> ((AsyncResponseHandler) handler).handleResponseAsync(response),
+                                                 executor)
+          .thenCompose(stage -> stage);
+      } else {
+        handling = runInExecutor(() -> handler.handleResponse(response));
+      }
+      handling.whenComplete((result, error) -> {
+        if (error != null && failure.compareAndSet(null, error)) {
+          LOG.error("Unable to process response, handler {} will be rolled back", name, error);
+        }
+        inbox.release();
+      });
+    }
+
+    /**
+     * Runs an operation in the executor of this handler.
+     */
+    private CompletableFuture<Void> runInExecutor(HandlerOperation operation) {
+      return CompletableFuture.runAsync(() -> {
+        try {
+          operation.run();
+        } catch (Exception e) {
+          throw new CompletionException(e);
+        }
+      }, executor);
+    }
+
+    /**
+     * Waits until all in-flight responses have been handled.
+     */
+    void drain() throws InterruptedException {
+      inbox.acquire(inboxSize);
+      inbox.release(inboxSize);
+    }
+
+    /**
+     * Finishes the handler once all its in-flight responses are handled, failed handlers are rolled back instead.
+     */
+    CompletableFuture<Void> finish() {
+      return terminate(() -> {
+        if (failure.get() != null) {
+          handler.rollback();
+        } else {
+          try {
+            handler.finish();
+          } catch (Exception e) {
+            LOG.error("Error finishing handler {}", name, e);
+            handler.rollback();
+          }
+        }
+      });
+    }
 
-  public ComposeHandler(ContentCrawlConfiguration config) {
-    handlers.add(new ResponseToFileHandler(config.getMendeley().getTargetDir()));
-    if (config.getElasticSearch() != null) {
-      handlers.add(new ElasticSearchIndexHandler(config));
+    /**
+     * Rolls back the handler once all its in-flight responses are handled.
+     */
+    CompletableFuture<Void> rollback() {
+      return terminate(handler::rollback);
     }
+
+    /**
+     * Runs the last operation of the handler in its executor after draining the inbox, and shuts down the executor.
+     */
+    private CompletableFuture<Void> terminate(HandlerOperation operation) {
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      return runInExecutor(() -> {
+          drain();
+          operation.run();
+        })
+        .whenComplete((result, error) -> {
+          executor.shutdown();
+          LOG.info("Time elapsed completing handler {} {} minutes", name, stopwatch.elapsed(TimeUnit.MINUTES));
+        });
+    }
+  }
+
+  /**
+   * Composes a list of handlers.
+   * @param inboxSize maximum number of in-flight responses per handler
+   * @param handlers handlers to compose
+   */
+  public ComposeHandler(int inboxSize, List<ResponseHandler> handlers) {
+    handlers.forEach(handler -> lanes.add(new HandlerLane(handler, inboxSize)));
   }
 
   @Override
-  public void handleResponse(String responseAsJson) throws Exception {
-    handlers.parallelStream().forEach(handler -> {
-      try {
-        handler.handleResponse(responseAsJson);
-      } catch (Exception e) {
-        LOG.error("Unable to process response", e);
-        throw new RuntimeException(e);
-      }
-    });
+  public void handleResponse(MendeleyResponse response) throws Exception {
+    for (HandlerLane lane : lanes) {
+      lane.submit(response);
+    }
   }
 
+  /**
+   * Finishes all the handlers concurrently, each one in its own executor.
+   */
   @Override
   public void finish() throws Exception {
-    handlers.parallelStream().forEach(handler -> {
-      try {
-        handler.finish();
-      } catch (Exception e) {
-        LOG.error("Error finishing handler", e);
-        throw new RuntimeException(e);
-      }
-    });
+    awaitAll(lanes.stream().map(HandlerLane::finish).collect(Collectors.toList()));
   }
 
+  /**
+   * Rolls back all the handlers concurrently, each one in its own executor.
+   */
   @Override
   public void rollback() throws Exception {
-    handlers.parallelStream().forEach(handler -> {
-      try {
-        handler.rollback();
-      } catch (Exception e) {
-        LOG.error("Error rolling back handler", e);
-        throw new RuntimeException(e);
-      }
-    });
+    awaitAll(lanes.stream().map(HandlerLane::rollback).collect(Collectors.toList()));
+  }
+
+  /**
+   * Waits for the completion of all the handlers, the first error found is thrown.
+   */
+  private static void awaitAll(List<CompletableFuture<Void>> completions) throws Exception {
+    try {
+      CompletableFuture.allOf(completions.toArray(new CompletableFuture[0])).join();
+    } catch (CompletionException e) {
+      LOG.error("Error completing handlers", e.getCause());
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
   }
 }
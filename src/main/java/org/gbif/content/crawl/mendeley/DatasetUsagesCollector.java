@@ -28,6 +28,7 @@ import org.cache2k.Cache2kBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
@@ -37,7 +38,7 @@ import lombok.Data;
 /**
  * Extracts and caches dataset usages of a GBIF DOI.
  */
-class DatasetUsagesCollector {
+class DatasetUsagesCollector implements CitationSource {
 
   private static final Logger LOG = LoggerFactory.getLogger(DatasetUsagesCollector.class);
 
@@ -48,7 +49,7 @@ class DatasetUsagesCollector {
    * Utility class to store information about dataset citations of GBIF DOI.
    */
   @Data
-  @Builder
+  @Builder(toBuilder = true)
   public static class DatasetCitation implements Serializable {
 
     private String datasetKey;
@@ -108,6 +109,10 @@ class DatasetUsagesCollector {
 
   private static final String IS_DERIVED_DATASET = "SELECT dd.doi FROM derived_dataset dd WHERE doi = ?";
 
+  //Removes the erase after date of a batch of downloads, returning the keys of the updated downloads
+  private static final String CLEAR_ERASE_AFTER = "UPDATE occurrence_download SET erase_after = NULL "
+      + "WHERE key = ANY(?) AND erase_after IS NOT NULL RETURNING key";
+
   //Caches information by DOI
   private final Cache<String, Collection<DatasetCitation>> cache;
 
@@ -173,6 +178,7 @@ class DatasetUsagesCollector {
    * @param doi to lookup
    * @return dataset citations associated to a DOI
    */
+  @Override
   public Collection<DatasetCitation> getCitations(String doi) {
     return cache.get(doi);
   }
@@ -192,6 +198,43 @@ class DatasetUsagesCollector {
       .collect(Collectors.toSet());
   }
 
+  /**
+   * Clears the erase after date of downloads, so they are retained indefinitely.
+   * All the batches are executed in a single transaction that is rolled back on any error.
+   * @param downloadKeys downloads to update
+   * @param batchSize number of downloads updated per statement
+   * @return keys of the downloads that have been updated
+   */
+  public Set<String> clearEraseAfter(Collection<String> downloadKeys, int batchSize) {
+    Set<String> updatedKeys = new HashSet<>();
+    try (Connection connection = dataSource.getConnection()) {
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try (PreparedStatement preparedStatement = connection.prepareStatement(CLEAR_ERASE_AFTER)) {
+        for (List<String> batch : Lists.partition(new ArrayList<>(downloadKeys), batchSize)) {
+          preparedStatement.setArray(1, connection.createArrayOf("varchar", batch.toArray()));
+          try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+              updatedKeys.add(resultSet.getString("key"));
+            }
+          }
+        }
+        connection.commit();
+        LOG.info("Erase after date cleared for {} of {} downloads", updatedKeys.size(), downloadKeys.size());
+      } catch (SQLException ex) {
+        connection.rollback();
+        throw ex;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+      return updatedKeys;
+    } catch (SQLException ex) {
+      LOG.error("Error updating downloads, no download has been modified", ex);
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @Override
   public boolean isDerivedDataset(String doi) {
     try (Connection connection = dataSource.getConnection();
          PreparedStatement preparedStatement = connection.prepareStatement(IS_DERIVED_DATASET)) {
@@ -0,0 +1,366 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import org.gbif.api.model.checklistbank.NameUsage;
+import org.gbif.api.vocabulary.Country;
+import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
+import org.gbif.content.crawl.mendeley.clients.DatasetEsClient;
+import org.gbif.content.crawl.mendeley.clients.SpeciesService;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.apache.commons.lang3.mutable.MutableObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Enriches Mendeley documents with GBIF data derived from their tags: cited datasets, downloads, publishers,
+ * networks, taxa, countries and controlled terms.
+ * Used at indexing time and to re-enrich documents already indexed when the registry data changes.
+ */
+public class DocumentEnricher {
+
+  //Mendeley fields used by the enricher
+  static final String ML_ID_FL = "id";
+  static final String ML_TAGS_FL = "tags";
+
+  //Elasticsearch fields created by the enricher
+  private static final String ES_COUNTRY_RESEARCHER_FL = "countriesOfResearcher";
+  private static final String ES_COUNTRY_COVERAGE_FL = "countriesOfCoverage";
+
+  //Cited DOIs, the index field works as reverse index DOI -> documents
+  static final String ES_GBIF_DOI_FL = "gbifDOI";
+  private static final String ES_GBIF_REGION_FL = "gbifRegion";
+  static final String ES_GBIF_DATASET_FL = "gbifDatasetKey";
+  private static final String ES_PUBLISHING_ORG_FL =  "publishingOrganizationKey";
+  private static final String ES_DOWNLOAD_FL = "gbifDownloadKey";
+  private static final String ES_GBIF_DERIVED_DATASET_FL = "gbifDerivedDatasetDoi";
+  private static final String ES_GBIF_TAXON_KEY_FL = "gbifTaxonKey";
+  private static final String ES_GBIF_HIGHER_TAXON_KEY_FL = "gbifHigherTaxonKey";
+  private static final String ES_GBIF_OCCURRENCE_KEY_FL = "gbifOccurrenceKey";
+  private static final String ES_GBIF_FEATURED_ID_FL = "gbifFeatureId";
+  private static final String ES_GBIF_NETWORK_KEY_FL = "gbifNetworkKey";
+  private static final String ES_GBIF_PROJECT_IDENTIFIER_FL = "gbifProjectIdentifier";
+  private static final String ES_GBIF_PROGRAMME_ACRONYM_FL = "gbifProgrammeAcronym";
+  private static final String ES_CITATION_TYPE_FL = "citationType";
+  private static final String ES_PUBLISHING_COUNTRY_FL = "publishingCountry";
+
+  private static final String ES_TOPICS_FL = "topics";
+  private static final String ES_RELEVANCE_FL = "relevance";
+
+  private static final String ES_PEER_REVIEW_FIELD = "peerReview";
+
+  private static final String OPEN_ACCESS_FIELD = "openAccess";
+
+  private static final String BIO_COUNTRY_POSTFIX = "_biodiversity";
+  private static final Pattern BIO_COUNTRY_POSTFIX_PAT = Pattern.compile(BIO_COUNTRY_POSTFIX);
+
+  private static final Pattern GBIF_DOI_TAG = Pattern.compile("gbifDOI:", Pattern.LITERAL);
+  private static final Pattern PEER_REVIEW_TAG = Pattern.compile("peer_review:", Pattern.LITERAL);
+  private static final Pattern OPEN_ACCESS_TAG = Pattern.compile("open_access:", Pattern.LITERAL);
+  private static final Pattern GBIF_TAXON_TAG = Pattern.compile("gbifTaxon:", Pattern.LITERAL);
+  private static final Pattern GBIF_OCCURRENCE_TAG = Pattern.compile("gbifOccurrence:", Pattern.LITERAL);
+  private static final Pattern GBIF_FEATURE_TAG = Pattern.compile("gbifFeature:", Pattern.LITERAL);
+  private static final Pattern CITATION_TYPE_TAG = Pattern.compile("citation_type:", Pattern.LITERAL);
+
+  private static final Logger LOG = LoggerFactory.getLogger(DocumentEnricher.class);
+
+  private final ContentCrawlConfiguration conf;
+  private final CitationSource citationSource;
+  private SpeciesService speciesService;
+  private DatasetEsClient datasetEsClient;
+
+  public DocumentEnricher(ContentCrawlConfiguration conf) {
+    this.conf = conf;
+    Map<String,String> dbConfigMap = conf.getMendeley().getDbConfig();
+    if (dbConfigMap != null && !dbConfigMap.isEmpty()) {
+      LOG.info("Database configuration found, enabling dataset citation features");
+      Properties dbConfig = new Properties();
+      dbConfig.putAll(dbConfigMap);
+      citationSource = new DatasetUsagesCollector(dbConfig);
+    } else if (conf.getGbifApi() != null && conf.getGbifApi().getUrl() != null) {
+      LOG.info("No database configuration found, dataset citations are resolved through the GBIF API");
+      citationSource = new RegistryCitationSource(conf.getGbifApi());
+    } else {
+      LOG.info("No database configuration found, running in ES-only mode");
+      citationSource = null;
+    }
+
+    // SpeciesService will be initialized lazily when needed
+    speciesService = null;
+
+    if (citationSource != null) {
+      try {
+        datasetEsClient = new DatasetEsClient(conf);
+        datasetEsClient.loadAllWithProjectIds();
+        LOG.info("Dataset ES client initialized");
+      } catch (Exception e) {
+        LOG.warn("Failed to initialize Dataset ES client: {}", e.getMessage());
+        datasetEsClient = null;
+      }
+    } else {
+      datasetEsClient = null;
+    }
+  }
+
+  /**
+   * Releases the clients used to resolve datasets.
+   */
+  public void close() {
+    if (datasetEsClient != null) {
+      datasetEsClient.close();
+    }
+  }
+
+  /**
+   * Loads into the dataset cache, in a single request, all the datasets cited by a batch of documents.
+   */
+  public void prefetchDatasets(Collection<? extends JsonNode> documents) {
+    if (citationSource != null && datasetEsClient != null) {
+      try {
+        Set<String> datasetKeys = documents.stream()
+          .filter(document -> document.has(ML_TAGS_FL))
+          .flatMap(document -> StreamSupport.stream(document.get(ML_TAGS_FL).spliterator(), false))
+          .map(JsonNode::asText)
+          .filter(value -> value.startsWith(GBIF_DOI_TAG.pattern()))
+          .map(value -> GBIF_DOI_TAG.matcher(value).replaceFirst("").toLowerCase())
+          .distinct()
+          .flatMap(doi -> citationSource.getCitations(doi).stream())
+          .map(DatasetUsagesCollector.DatasetCitation::getDatasetKey)
+          .filter(Objects::nonNull)
+          .collect(Collectors.toSet());
+        datasetEsClient.prefetch(datasetKeys);
+      } catch (Exception ex) {
+        LOG.warn("Error prefetching datasets, they will be loaded one by one: {}", ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Process tags. Adds publishers countries and biodiversity countries from tag values.
+   * Documents without tags are left untouched.
+   */
+  public void enrich(ObjectNode document) {
+    if (!document.has(ML_TAGS_FL)) {
+      return;
+    }
+    try {
+      Set<TextNode> gbifDois = new HashSet<>();
+      Set<TextNode> countriesOfResearches = new HashSet<>();
+      Set<TextNode> countriesOfCoverage = new HashSet<>();
+      Set<TextNode> regions = new HashSet<>();
+      Set<TextNode> gbifDatasets = new HashSet<>();
+      Set<TextNode> gbifDerivedDatasets = new HashSet<>();
+      Set<TextNode> publishingOrganizations = new HashSet<>();
+      Set<TextNode> gbifDownloads = new HashSet<>();
+      Set<IntNode> gbifTaxonKeys = new HashSet<>();
+      Set<LongNode> gbifOccurrenceKeys = new HashSet<>();
+      Set<TextNode> gbifFeatureIds = new HashSet<>();
+      Set<TextNode> gbifNetworkKeys = new HashSet<>();
+      Set<TextNode> gbifProjectIds = new HashSet<>();
+      Set<TextNode> gbifProgrammeAcronyms = new HashSet<>();
+      MutableObject<TextNode> citationType = new MutableObject<>();
+      Set<TextNode> topics = new HashSet<>();
+      Set<TextNode> relevance = new HashSet<>();
+      Set<TextNode> publishingCountry = new HashSet<>();
+      final MutableBoolean peerReviewValue = new MutableBoolean(Boolean.FALSE);
+      final MutableBoolean openAccessValue = new MutableBoolean(Boolean.FALSE);
+      document.get(ML_TAGS_FL).elements().forEachRemaining(node -> {
+        String value = node.textValue();
+        if (value.startsWith(GBIF_DOI_TAG.pattern())) {
+          String keyValue  = GBIF_DOI_TAG.matcher(value).replaceFirst("").toLowerCase();
+          gbifDois.add(new TextNode(keyValue));
+          if (citationSource != null) {
+            Collection<DatasetUsagesCollector.DatasetCitation> citations = citationSource.getCitations(keyValue);
+            if (citations.isEmpty()) {
+              LOG.warn("Document ID {} has a not-found DOI {}", document.get(ML_ID_FL), keyValue);
+            } else {
+              citations.forEach(citation -> {
+                Optional.ofNullable(citation.getDownloadKey()).ifPresent(k -> gbifDownloads.add(new TextNode(k)));
+                Optional.ofNullable(citation.getDatasetKey()).ifPresent(k -> {
+                  gbifDatasets.add(new TextNode(k));
+                  if (datasetEsClient != null) {
+                    Optional<DatasetEsClient.DatasetSearchResponse> response = datasetEsClient.get(k);
+                    response
+                      .flatMap(searchResponse -> Optional.ofNullable(searchResponse.getProjectIdentifier())
+                      .map(TextNode::new))
+                      .ifPresent(gbifProjectIds::add);
+
+                    response
+                      .flatMap(searchResponse -> Optional.ofNullable(searchResponse.getProgrammeAcronym())
+                        .map(TextNode::new))
+                      .ifPresent(gbifProgrammeAcronyms::add);
+                  }
+                });
+                Optional.ofNullable(citation.getPublishingOrganizationKey()).ifPresent(k -> publishingOrganizations.add(new TextNode(k)));
+                Optional.ofNullable(citation.getNetworkKeys()).ifPresent(nk -> gbifNetworkKeys.addAll(Arrays.stream(nk)
+                                                                                                        .map(nKey -> new TextNode(nKey.toString()))
+                                                                                                        .collect(Collectors.toList())));
+                Optional.ofNullable(citation.getPublishingCountry()).ifPresent(k -> publishingCountry.add(new TextNode(k)));
+              });
+            }
+
+            if(citationSource.isDerivedDataset(keyValue)) {
+              gbifDerivedDatasets.add(new TextNode(keyValue));
+            }
+          }
+        } else if (value.startsWith(PEER_REVIEW_TAG.pattern())) {
+          peerReviewValue.setValue(Boolean.parseBoolean(PEER_REVIEW_TAG.matcher(value).replaceFirst("")));
+        } else if (value.startsWith(OPEN_ACCESS_TAG.pattern())) {
+          openAccessValue.setValue(Boolean.parseBoolean(OPEN_ACCESS_TAG.matcher(value).replaceFirst("")));
+        } else if (value.startsWith(GBIF_TAXON_TAG.pattern())) {
+          try {
+            String taxonKeyStr = GBIF_TAXON_TAG.matcher(value).replaceFirst("");
+            gbifTaxonKeys.add(new IntNode(Integer.parseInt(taxonKeyStr)));
+          } catch (NumberFormatException ex) {
+            LOG.warn("Invalid GBIF taxon key '{}' in document {}: {}",
+                     value, document.get(ML_ID_FL).asText(), ex.getMessage());
+          }
+        } else if (value.startsWith(GBIF_OCCURRENCE_TAG.pattern())) {
+          try {
+            String occurrenceKeyStr = GBIF_OCCURRENCE_TAG.matcher(value).replaceFirst("");
+            gbifOccurrenceKeys.add(new LongNode(Long.parseLong(occurrenceKeyStr)));
+          } catch (NumberFormatException ex) {
+            LOG.warn("Invalid GBIF occurrence key '{}' in document {}: {}",
+                     value, document.get(ML_ID_FL).asText(), ex.getMessage());
+          }
+        } else if (value.startsWith(GBIF_FEATURE_TAG.pattern())) {
+          gbifFeatureIds.add(new TextNode(GBIF_FEATURE_TAG.matcher(value).replaceFirst("")));
+        } else if (value.startsWith(CITATION_TYPE_TAG.pattern())) {
+          citationType.setValue(new TextNode(CITATION_TYPE_TAG.matcher(value).replaceFirst("")));
+        } else { //try country parser
+          //VocabularyUtils uses Guava optionals
+          String lowerCaseValue = value.toLowerCase();
+          if (lowerCaseValue.endsWith(BIO_COUNTRY_POSTFIX)) {
+            Optional.ofNullable(Country.fromIsoCode(BIO_COUNTRY_POSTFIX_PAT.matcher(lowerCaseValue).replaceAll("")))
+              .ifPresent(bioCountry -> {
+                countriesOfCoverage.add(TextNode.valueOf(bioCountry.getIso2LetterCode()));
+                Optional.ofNullable(bioCountry.getGbifRegion())
+                  .ifPresent(region -> regions.add(TextNode.valueOf(region.name())));
+              });
+          } else {
+            Optional<Country> researcherCountry = Optional.ofNullable(Country.fromIsoCode(value));
+            if (researcherCountry.isPresent()) {
+              countriesOfResearches.add(TextNode.valueOf(researcherCountry.get().getIso2LetterCode()));
+            } else { // try controlled terms
+              if(!addIfIsControlledTerm(ES_TOPICS_FL, value, topics)) {
+                addIfIsControlledTerm(ES_RELEVANCE_FL, value, relevance);
+              }
+            }
+          }
+        }
+      });
+      ObjectNode docNode  = document;
+      docNode.putArray(ES_GBIF_DOI_FL).addAll(gbifDois);
+      docNode.putArray(ES_COUNTRY_RESEARCHER_FL).addAll(countriesOfResearches);
+      docNode.putArray(ES_COUNTRY_COVERAGE_FL).addAll(countriesOfCoverage);
+      docNode.putArray(ES_GBIF_REGION_FL).addAll(regions);
+      docNode.putArray(ES_GBIF_DATASET_FL).addAll(gbifDatasets);
+      docNode.putArray(ES_PUBLISHING_ORG_FL).addAll(publishingOrganizations);
+      docNode.putArray(ES_PUBLISHING_COUNTRY_FL).addAll(publishingCountry);
+      docNode.putArray(ES_RELEVANCE_FL).addAll(relevance);
+      docNode.putArray(ES_TOPICS_FL).addAll(topics);
+      docNode.putArray(ES_DOWNLOAD_FL).addAll(gbifDownloads);
+      docNode.putArray(ES_GBIF_DERIVED_DATASET_FL).addAll(gbifDerivedDatasets);
+      docNode.putArray(ES_GBIF_TAXON_KEY_FL).addAll(gbifTaxonKeys);
+      docNode.putArray(ES_GBIF_HIGHER_TAXON_KEY_FL).addAll(getHigherTaxonKeys(gbifTaxonKeys));
+      docNode.putArray(ES_GBIF_OCCURRENCE_KEY_FL).addAll(gbifOccurrenceKeys);
+      docNode.putArray(ES_GBIF_FEATURED_ID_FL).addAll(gbifFeatureIds);
+      docNode.putArray(ES_GBIF_NETWORK_KEY_FL).addAll(gbifNetworkKeys);
+      docNode.putArray(ES_GBIF_PROJECT_IDENTIFIER_FL).addAll(gbifProjectIds);
+      docNode.putArray(ES_GBIF_PROGRAMME_ACRONYM_FL).addAll(gbifProgrammeAcronyms);
+      Optional.ofNullable(citationType.getValue()).ifPresent(ct -> docNode.set(ES_CITATION_TYPE_FL, ct));
+      docNode.put(ES_PEER_REVIEW_FIELD, peerReviewValue.getValue());
+      docNode.put(OPEN_ACCESS_FIELD, openAccessValue.getValue());
+    } catch (Exception ex) {
+      String docId = document.has(ML_ID_FL) ? document.get(ML_ID_FL).asText() : "unknown";
+      LOG.error("Error processing tags for document with ID [{}]: {}", docId, ex.getMessage(), ex);
+    }
+  }
+
+  /** Gets a list higher taxa keys of a list of species/name-usages.*/
+  private Set<IntNode> getHigherTaxonKeys(Set<IntNode> gbifTaxonKeys) {
+    Set<IntNode> highTaxaKeys = new HashSet<>();
+    gbifTaxonKeys.forEach(node ->  highTaxaKeys.addAll(getHigherTaxonKeys(node.intValue())));
+    return highTaxaKeys;
+  }
+
+  /** Gets the higher taxa keys of a name-usage/species.*/
+  private Set<IntNode> getHigherTaxonKeys(Integer speciesKey) {
+    if (speciesKey != null) {
+      SpeciesService service = getSpeciesService();
+      if (service != null) {
+        try {
+          NameUsage nameUsage = service.get(speciesKey);
+          if (nameUsage != null) {
+            return Optional.ofNullable(nameUsage.getHigherClassificationMap())
+              .map(map -> map.keySet().stream().map(IntNode::new).collect(Collectors.toSet()))
+              .orElse(Collections.emptySet());
+          } else {
+            LOG.debug("Taxon key {} not found in species service (possibly invalid or deleted)", speciesKey);
+          }
+        } catch (Exception e) {
+          LOG.warn("Failed to get species data for taxon key {}: {}", speciesKey, e.getMessage());
+        }
+      }
+    }
+    return Collections.emptySet();
+  }
+
+  /**
+   * Lazy initialization of SpeciesService to avoid auth errors during startup
+   */
+  private SpeciesService getSpeciesService() {
+    if (speciesService == null && conf.getGbifApi() != null && conf.getGbifApi().getUrl() != null) {
+      try {
+        speciesService = SpeciesService.wsClient(conf.getGbifApi().getUrl());
+        LOG.info("GBIF Species service initialized");
+      } catch (Exception e) {
+        LOG.warn("Failed to initialize GBIF Species service: {}", e.getMessage());
+        speciesService = null;
+      }
+    }
+    return speciesService;
+  }
+
+  /**
+   * If the value appears in the list of conf.mendeley.controlledTags[controlledTermName] it is added to terms.
+   */
+  private boolean addIfIsControlledTerm(String controlledTermName, String value, Set<TextNode> terms) {
+    Optional<String> controlledTermValue = conf.getMendeley().getControlledTags().get(controlledTermName).stream()
+                                            .filter(controlledTerm -> controlledTerm.equalsIgnoreCase(value))
+                                            .findAny();
+    controlledTermValue.ifPresent(matchTerm -> terms.add(TextNode.valueOf(matchTerm.replace(' ', '_').toUpperCase())));
+    return controlledTermValue.isPresent();
+  }
+}
@@ -13,31 +13,26 @@
  */
 package org.gbif.content.crawl.mendeley;
 
-import org.gbif.api.model.checklistbank.NameUsage;
-import org.gbif.api.vocabulary.Country;
 import org.gbif.api.vocabulary.Language;
 import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
-import org.gbif.content.crawl.mendeley.clients.DatasetEsClient;
-import org.gbif.content.crawl.mendeley.clients.SpeciesService;
 
 import java.io.IOException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.Properties;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
-
-import org.apache.commons.lang3.mutable.MutableBoolean;
-import org.apache.commons.lang3.mutable.MutableObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.elasticsearch.core.BulkRequest;
 import co.elastic.clients.elasticsearch.core.BulkResponse;
@@ -47,13 +42,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.BooleanNode;
-import com.fasterxml.jackson.databind.node.IntNode;
-import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.base.CaseFormat;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import static org.gbif.content.crawl.es.ElasticSearchUtils.buildEsClient;
@@ -61,16 +56,16 @@ import static org.gbif.content.crawl.es.ElasticSearchUtils.createIndex;
 import static org.gbif.content.crawl.es.ElasticSearchUtils.getEsIdxName;
 import static org.gbif.content.crawl.es.ElasticSearchUtils.getEsIndexingIdxName;
 import static org.gbif.content.crawl.es.ElasticSearchUtils.indexMappings;
-import static org.gbif.content.crawl.es.ElasticSearchUtils.swapIndexToAlias;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.prepareForServing;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.swapIndicesToAliases;
 
 /**
  * Parses the documents from the response and adds them to the index.
  */
-public class ElasticSearchIndexHandler implements ResponseHandler {
+public class ElasticSearchIndexHandler implements AsyncResponseHandler {
 
   //Mendeley fields used by this handler
   private static final String ML_ID_FL = "id";
-  private static final String ML_TAGS_FL = "tags";
   private static final String ML_MONTH_FL = "month";
   private static final String ML_DAY_FL = "day";
   private static final String ML_YEAR_FL = "year";
@@ -79,32 +74,22 @@ public class ElasticSearchIndexHandler implements ResponseHandler {
 
 
   //Elasticsearch fields created by this handler
-  private static final String ES_COUNTRY_RESEARCHER_FL = "countriesOfResearcher";
-  private static final String ES_COUNTRY_COVERAGE_FL = "countriesOfCoverage";
-
   private static final String ES_CREATED_AT_FL = "createdAt";
   private static final String ES_UPDATED_AT_FL = "updatedAt";
 
-  private static final String ES_GBIF_REGION_FL = "gbifRegion";
-  private static final String ES_GBIF_DATASET_FL = "gbifDatasetKey";
-  private static final String ES_PUBLISHING_ORG_FL =  "publishingOrganizationKey";
-  private static final String ES_DOWNLOAD_FL = "gbifDownloadKey";
-  private static final String ES_GBIF_DERIVED_DATASET_FL = "gbifDerivedDatasetDoi";
-  private static final String ES_GBIF_TAXON_KEY_FL = "gbifTaxonKey";
-  private static final String ES_GBIF_HIGHER_TAXON_KEY_FL = "gbifHigherTaxonKey";
-  private static final String ES_GBIF_OCCURRENCE_KEY_FL = "gbifOccurrenceKey";
-  private static final String ES_GBIF_FEATURED_ID_FL = "gbifFeatureId";
-  private static final String ES_GBIF_NETWORK_KEY_FL = "gbifNetworkKey";
-  private static final String ES_GBIF_PROJECT_IDENTIFIER_FL = "gbifProjectIdentifier";
-  private static final String ES_GBIF_PROGRAMME_ACRONYM_FL = "gbifProgrammeAcronym";
-  private static final String ES_CITATION_TYPE_FL = "citationType";
-  private static final String ES_PUBLISHING_COUNTRY_FL = "publishingCountry";
-
-  private static final String ES_TOPICS_FL = "topics";
-  private static final String ES_RELEVANCE_FL = "relevance";
-
   private static final String ES_MAPPING_FILE = "mendeley_mapping.json";
 
+  private static final String ES_STATISTICS_MAPPING_FILE = "literature_statistics_mapping.json";
+
+  private static final String ES_CITATIONS_MAPPING_FILE = "literature_citations_mapping.json";
+
+  //Suffixes of the names of the rollup indices
+  private static final String STATISTICS_SUFFIX = "_statistics";
+  static final String CITATIONS_SUFFIX = "_citations";
+
+  //Documents per bulk request of the rollup indices
+  private static final int ROLLUP_BATCH_SIZE = 1000;
+
   private static final String LITERATURE_TYPE_FIELD = "literatureType";
 
   private static final String TYPE_FIELD = "type";
@@ -118,118 +103,95 @@ public class ElasticSearchIndexHandler implements ResponseHandler {
   private static final String SEARCHABLE_FIELD = "searchable";
   private static final String PUBLICATION_DATE_FIELD = "publicationDate";
 
-  private static final String ES_PEER_REVIEW_FIELD = "peerReview";
-
-  private static final String OPEN_ACCESS_FIELD = "openAccess";
-
-  private static final String BIO_COUNTRY_POSTFIX = "_biodiversity";
-  private static final Pattern BIO_COUNTRY_POSTFIX_PAT = Pattern.compile(BIO_COUNTRY_POSTFIX);
-
-  private static final Pattern GBIF_DOI_TAG = Pattern.compile("gbifDOI:", Pattern.LITERAL);
-  private static final Pattern PEER_REVIEW_TAG = Pattern.compile("peer_review:", Pattern.LITERAL);
-  private static final Pattern OPEN_ACCESS_TAG = Pattern.compile("open_access:", Pattern.LITERAL);
-  private static final Pattern GBIF_TAXON_TAG = Pattern.compile("gbifTaxon:", Pattern.LITERAL);
-  private static final Pattern GBIF_OCCURRENCE_TAG = Pattern.compile("gbifOccurrence:", Pattern.LITERAL);
-  private static final Pattern GBIF_FEATURE_TAG = Pattern.compile("gbifFeature:", Pattern.LITERAL);
-  private static final Pattern CITATION_TYPE_TAG = Pattern.compile("citation_type:", Pattern.LITERAL);
-
   private static final Logger LOG = LoggerFactory.getLogger(ElasticSearchIndexHandler.class);
-  private static final ObjectMapper MAPPER = new ObjectMapper();
   private static final String LAST_MODIFIED = "last_modified";
 
   private final ElasticsearchClient esClient;
+  private final ElasticsearchAsyncClient esAsyncClient;
   private final ContentCrawlConfiguration conf;
   private final String esIdxName;
   private final int batchSize;
-  private DatasetUsagesCollector datasetUsagesCollector;
-  private SpeciesService speciesService;
-  private DatasetEsClient datasetEsClient;
+  private final DocumentEnricher documentEnricher;
+  private final ContentCrawlConfiguration.IndexProfile indexProfile;
+  private final LiteratureStatistics statistics = new LiteratureStatistics();
+  private final CitationRollups citationRollups = new CitationRollups();
+  //Rollup indices created on finish
+  private final List<String> rollupIdxNames = new ArrayList<>();
 
 
   public ElasticSearchIndexHandler(ContentCrawlConfiguration conf) {
+    this(conf, 0);
+  }
+
+  /**
+   * Creates the handler and its index.
+   * @param expectedDocuments number of documents to be indexed, 0 if it is unknown
+   */
+  public ElasticSearchIndexHandler(ContentCrawlConfiguration conf, long expectedDocuments) {
     this.conf = conf;
     LOG.info("Connecting to ES cluster {}", conf.getElasticSearch());
     esClient = buildEsClient(conf.getElasticSearch());
+    esAsyncClient = new ElasticsearchAsyncClient(esClient._transport());
     esIdxName = getEsIndexingIdxName(conf.getMendeley().getIndexBuild().getEsIndexName());
     batchSize = conf.getMendeley().getIndexBuild().getBatchSize();
-    
-    Map<String,String> dbConfigMap = conf.getMendeley().getDbConfig();
-    if (dbConfigMap != null && !dbConfigMap.isEmpty()) {
-      LOG.info("Database configuration found, enabling dataset citation features");
-      Properties dbConfig = new Properties();
-      dbConfig.putAll(dbConfigMap);
-      datasetUsagesCollector = new DatasetUsagesCollector(dbConfig);
-      
-      // SpeciesService will be initialized lazily when needed
-      speciesService = null;
-      
-      try {
-        datasetEsClient = new DatasetEsClient(conf);
-        datasetEsClient.loadAllWithProjectIds();
-        LOG.info("Dataset ES client initialized");
-      } catch (Exception e) {
-        LOG.warn("Failed to initialize Dataset ES client: {}", e.getMessage());
-        datasetEsClient = null;
-      }
-    } else {
-      LOG.info("No database configuration found, running in ES-only mode");
-      datasetUsagesCollector = null;
-      speciesService = null;
-      datasetEsClient = null;
-    }
-    
-    createIndex(esClient, esIdxName, indexMappings(ES_MAPPING_FILE));
+
+    indexProfile = conf.getIndexProfile(conf.getMendeley().getIndexBuild());
+
+    documentEnricher = new DocumentEnricher(conf);
+    createIndex(esClient, esIdxName, indexMappings(ES_MAPPING_FILE), indexProfile, expectedDocuments);
   }
 
   /**
-   * Bulk loads the response as JSON into ES.
-   * @param responseAsJson To load.
+   * Bulk loads the response documents into ES.
+   * Documents are enriched in the calling thread, bulk requests are sent asynchronously.
+   * Statistics and citation rollups count only the documents accepted by ES.
+   * @param response To load.
+   * @return stage completed when all the bulk requests of the response have been answered
    */
   @Override
-  public void handleResponse(String responseAsJson) {
-
-    final AtomicInteger counter = new AtomicInteger();
-    //process each Json node
-    Iterable<JsonNode> iterable = () -> {
-      try {
-        return MAPPER.readTree(responseAsJson).elements();
-      } catch (IOException ex) {
-        throw new RuntimeException(ex);
-      }
-    };
-    StreamSupport.stream(iterable.spliterator(), true)
-      .collect(Collectors.groupingBy(it -> counter.getAndIncrement() / batchSize))
-      .values().forEach(nodes ->
-                        {
-                          try {
-                            BulkRequest.Builder bulkRequestBuilder = new BulkRequest.Builder();
-                            nodes.forEach( document -> {
-                                                        try {
-                                                          toCamelCasedFields(document);
-                                                          manageReplacements((ObjectNode) document);
-                                                          if (document.has(ML_TAGS_FL)) {
-                                                            handleTags(document);
-                                                          }
-                                                          bulkRequestBuilder.operations(op -> op
-                                                              .index(idx -> idx
-                                                                  .index(esIdxName)
-                                                                  .id(document.get(ML_ID_FL).asText())
-                                                                  .document(JsonData.of(document))));
-                                                        } catch (Exception ex) {
-                                                          String docId = document.has(ML_ID_FL) ? document.get(ML_ID_FL).asText() : "unknown";
-                                                          LOG.error("Error processing document with ID [{}]: {}", docId, ex.getMessage(), ex);
-                                                        }
-                                                      });
-                            BulkResponse bulkResponse = esClient.bulk(bulkRequestBuilder.build());
-                            if (bulkResponse.errors()) {
-                              LOG.error("Error indexing.  First error message: {}", bulkResponse.items().get(0).error().reason());
-                            } else {
-                              LOG.info("Indexed [{}] documents", bulkResponse.items().size());
-                            }
-                        } catch (IOException ex){
-                            throw new RuntimeException(ex);
-                          }
-                        });
+  public CompletionStage<Void> handleResponseAsync(MendeleyResponse response) {
+    List<CompletableFuture<BulkResponse>> bulkResponses = new ArrayList<>();
+    Lists.partition(response.getDocuments(), batchSize).forEach(nodes -> {
+      documentEnricher.prefetchDatasets(nodes);
+      BulkRequest.Builder bulkRequestBuilder = new BulkRequest.Builder();
+      //documents of the bulk by id, counted once ES has indexed them
+      Map<String, ObjectNode> bulkDocuments = new HashMap<>();
+      nodes.forEach(sharedDocument -> {
+        try {
+          //documents are shared with other handlers
+          ObjectNode document = MendeleyResponse.mutableCopy(sharedDocument);
+          toCamelCasedFields(document);
+          manageReplacements(document);
+          documentEnricher.enrich(document);
+          bulkDocuments.put(document.get(ML_ID_FL).asText(), document);
+          bulkRequestBuilder.operations(op -> op
+              .index(idx -> idx
+                  .index(esIdxName)
+                  .id(document.get(ML_ID_FL).asText())
+                  .document(JsonData.of(document))));
+        } catch (Exception ex) {
+          String docId = sharedDocument.has(ML_ID_FL) ? sharedDocument.get(ML_ID_FL).asText() : "unknown";
+          LOG.error("Error processing document with ID [{}]: {}", docId, ex.getMessage(), ex);
+        }
+      });
+      bulkResponses.add(esAsyncClient.bulk(bulkRequestBuilder.build()).thenApply(bulkResponse -> {
+        if (bulkResponse.errors()) {
+          LOG.error("Error indexing.  First error message: {}", bulkResponse.items().get(0).error().reason());
+        } else {
+          LOG.info("Indexed [{}] documents", bulkResponse.items().size());
+        }
+        bulkResponse.items().stream()
+          .filter(item -> item.error() == null)
+          .map(item -> bulkDocuments.get(item.id()))
+          .filter(Objects::nonNull)
+          .forEach(document -> {
+            statistics.add(document);
+            citationRollups.add(document);
+          });
+        return bulkResponse;
+      }));
+    });
+    return CompletableFuture.allOf(bulkResponses.toArray(new CompletableFuture[0]));
   }
 
   /**
@@ -238,198 +200,14 @@ public class ElasticSearchIndexHandler implements ResponseHandler {
    */
   @Override
   public void rollback() throws Exception {
-    esClient.indices().delete(new DeleteIndexRequest.Builder().index(esIdxName).build());
-  }
-
-  /**
-   * Process tags. Adds publishers countries and biodiversity countries from tag values.
-   */
-  private void handleTags(JsonNode document) {
     try {
-      Set<TextNode> countriesOfResearches = new HashSet<>();
-      Set<TextNode> countriesOfCoverage = new HashSet<>();
-      Set<TextNode> regions = new HashSet<>();
-      Set<TextNode> gbifDatasets = new HashSet<>();
-      Set<TextNode> gbifDerivedDatasets = new HashSet<>();
-      Set<TextNode> publishingOrganizations = new HashSet<>();
-      Set<TextNode> gbifDownloads = new HashSet<>();
-      Set<IntNode> gbifTaxonKeys = new HashSet<>();
-      Set<LongNode> gbifOccurrenceKeys = new HashSet<>();
-      Set<TextNode> gbifFeatureIds = new HashSet<>();
-      Set<TextNode> gbifNetworkKeys = new HashSet<>();
-      Set<TextNode> gbifProjectIds = new HashSet<>();
-      Set<TextNode> gbifProgrammeAcronyms = new HashSet<>();
-      MutableObject<TextNode> citationType = new MutableObject<>();
-      Set<TextNode> topics = new HashSet<>();
-      Set<TextNode> relevance = new HashSet<>();
-      Set<TextNode> publishingCountry = new HashSet<>();
-      final MutableBoolean peerReviewValue = new MutableBoolean(Boolean.FALSE);
-      final MutableBoolean openAccessValue = new MutableBoolean(Boolean.FALSE);
-      document.get(ML_TAGS_FL).elements().forEachRemaining(node -> {
-        String value = node.textValue();
-        if (value.startsWith(GBIF_DOI_TAG.pattern())) {
-          String keyValue  = GBIF_DOI_TAG.matcher(value).replaceFirst("").toLowerCase();
-          if (datasetUsagesCollector != null) {
-            Collection<DatasetUsagesCollector.DatasetCitation> citations = datasetUsagesCollector.getCitations(keyValue);
-            if (citations.isEmpty()) {
-              LOG.warn("Document ID {} has a not-found DOI {}", document.get(ML_ID_FL), keyValue);
-            } else {
-              citations.forEach(citation -> {
-                Optional.ofNullable(citation.getDownloadKey()).ifPresent(k -> gbifDownloads.add(new TextNode(k)));
-                Optional.ofNullable(citation.getDatasetKey()).ifPresent(k -> {
-                  gbifDatasets.add(new TextNode(k));
-                  if (datasetEsClient != null) {
-                    Optional<DatasetEsClient.DatasetSearchResponse> response = datasetEsClient.get(k);
-                    response
-                      .flatMap(searchResponse -> Optional.ofNullable(searchResponse.getProjectIdentifier())
-                      .map(TextNode::new))
-                      .ifPresent(gbifProjectIds::add);
-
-                    response
-                      .flatMap(searchResponse -> Optional.ofNullable(searchResponse.getProgrammeAcronym())
-                        .map(TextNode::new))
-                      .ifPresent(gbifProgrammeAcronyms::add);
-                  }
-                });
-                Optional.ofNullable(citation.getPublishingOrganizationKey()).ifPresent(k -> publishingOrganizations.add(new TextNode(k)));
-                Optional.ofNullable(citation.getNetworkKeys()).ifPresent(nk -> gbifNetworkKeys.addAll(Arrays.stream(nk)
-                                                                                                        .map(nKey -> new TextNode(nKey.toString()))
-                                                                                                        .collect(Collectors.toList())));
-                Optional.ofNullable(citation.getPublishingCountry()).ifPresent(k -> publishingCountry.add(new TextNode(k)));
-              });
-            }
-
-            if(datasetUsagesCollector.isDerivedDataset(keyValue)) {
-              gbifDerivedDatasets.add(new TextNode(keyValue));
-            }
-          }
-        } else if (value.startsWith(PEER_REVIEW_TAG.pattern())) {
-          peerReviewValue.setValue(Boolean.parseBoolean(PEER_REVIEW_TAG.matcher(value).replaceFirst("")));
-        } else if (value.startsWith(OPEN_ACCESS_TAG.pattern())) {
-          openAccessValue.setValue(Boolean.parseBoolean(OPEN_ACCESS_TAG.matcher(value).replaceFirst("")));
-        } else if (value.startsWith(GBIF_TAXON_TAG.pattern())) {
-          try {
-            String taxonKeyStr = GBIF_TAXON_TAG.matcher(value).replaceFirst("");
-            gbifTaxonKeys.add(new IntNode(Integer.parseInt(taxonKeyStr)));
-          } catch (NumberFormatException ex) {
-            LOG.warn("Invalid GBIF taxon key '{}' in document {}: {}",
-                     value, document.get(ML_ID_FL).asText(), ex.getMessage());
-          }
-        } else if (value.startsWith(GBIF_OCCURRENCE_TAG.pattern())) {
-          try {
-            String occurrenceKeyStr = GBIF_OCCURRENCE_TAG.matcher(value).replaceFirst("");
-            gbifOccurrenceKeys.add(new LongNode(Long.parseLong(occurrenceKeyStr)));
-          } catch (NumberFormatException ex) {
-            LOG.warn("Invalid GBIF occurrence key '{}' in document {}: {}",
-                     value, document.get(ML_ID_FL).asText(), ex.getMessage());
-          }
-        } else if (value.startsWith(GBIF_FEATURE_TAG.pattern())) {
-          gbifFeatureIds.add(new TextNode(GBIF_FEATURE_TAG.matcher(value).replaceFirst("")));
-        } else if (value.startsWith(CITATION_TYPE_TAG.pattern())) {
-          citationType.setValue(new TextNode(CITATION_TYPE_TAG.matcher(value).replaceFirst("")));
-        } else { //try country parser
-          //VocabularyUtils uses Guava optionals
-          String lowerCaseValue = value.toLowerCase();
-          if (lowerCaseValue.endsWith(BIO_COUNTRY_POSTFIX)) {
-            Optional.ofNullable(Country.fromIsoCode(BIO_COUNTRY_POSTFIX_PAT.matcher(lowerCaseValue).replaceAll("")))
-              .ifPresent(bioCountry -> {
-                countriesOfCoverage.add(TextNode.valueOf(bioCountry.getIso2LetterCode()));
-                Optional.ofNullable(bioCountry.getGbifRegion())
-                  .ifPresent(region -> regions.add(TextNode.valueOf(region.name())));
-              });
-          } else {
-            Optional<Country> researcherCountry = Optional.ofNullable(Country.fromIsoCode(value));
-            if (researcherCountry.isPresent()) {
-              countriesOfResearches.add(TextNode.valueOf(researcherCountry.get().getIso2LetterCode()));
-            } else { // try controlled terms
-              if(!addIfIsControlledTerm(ES_TOPICS_FL, value, topics)) {
-                addIfIsControlledTerm(ES_RELEVANCE_FL, value, relevance);
-              }
-            }
-          }
-        }
-      });
-      ObjectNode docNode  = (ObjectNode)document;
-      docNode.putArray(ES_COUNTRY_RESEARCHER_FL).addAll(countriesOfResearches);
-      docNode.putArray(ES_COUNTRY_COVERAGE_FL).addAll(countriesOfCoverage);
-      docNode.putArray(ES_GBIF_REGION_FL).addAll(regions);
-      docNode.putArray(ES_GBIF_DATASET_FL).addAll(gbifDatasets);
-      docNode.putArray(ES_PUBLISHING_ORG_FL).addAll(publishingOrganizations);
-      docNode.putArray(ES_PUBLISHING_COUNTRY_FL).addAll(publishingCountry);
-      docNode.putArray(ES_RELEVANCE_FL).addAll(relevance);
-      docNode.putArray(ES_TOPICS_FL).addAll(topics);
-      docNode.putArray(ES_DOWNLOAD_FL).addAll(gbifDownloads);
-      docNode.putArray(ES_GBIF_DERIVED_DATASET_FL).addAll(gbifDerivedDatasets);
-      docNode.putArray(ES_GBIF_TAXON_KEY_FL).addAll(gbifTaxonKeys);
-      docNode.putArray(ES_GBIF_HIGHER_TAXON_KEY_FL).addAll(getHigherTaxonKeys(gbifTaxonKeys));
-      docNode.putArray(ES_GBIF_OCCURRENCE_KEY_FL).addAll(gbifOccurrenceKeys);
-      docNode.putArray(ES_GBIF_FEATURED_ID_FL).addAll(gbifFeatureIds);
-      docNode.putArray(ES_GBIF_NETWORK_KEY_FL).addAll(gbifNetworkKeys);
-      docNode.putArray(ES_GBIF_PROJECT_IDENTIFIER_FL).addAll(gbifProjectIds);
-      docNode.putArray(ES_GBIF_PROGRAMME_ACRONYM_FL).addAll(gbifProgrammeAcronyms);
-      Optional.ofNullable(citationType.getValue()).ifPresent(ct -> docNode.set(ES_CITATION_TYPE_FL, ct));
-      docNode.put(ES_PEER_REVIEW_FIELD, peerReviewValue.getValue());
-      docNode.put(OPEN_ACCESS_FIELD, openAccessValue.getValue());
-    } catch (Exception ex) {
-      String docId = document.has(ML_ID_FL) ? document.get(ML_ID_FL).asText() : "unknown";
-      LOG.error("Error processing tags for document with ID [{}]: {}", docId, ex.getMessage(), ex);
-    }
-  }
-
-  /** Gets a list higher taxa keys of a list of species/name-usages.*/
-  private Set<IntNode> getHigherTaxonKeys(Set<IntNode> gbifTaxonKeys) {
-    Set<IntNode> highTaxaKeys = new HashSet<>();
-    gbifTaxonKeys.forEach(node ->  highTaxaKeys.addAll(getHigherTaxonKeys(node.intValue())));
-    return highTaxaKeys;
-  }
-
-  /** Gets the higher taxa keys of a name-usage/species.*/
-  private Set<IntNode> getHigherTaxonKeys(Integer speciesKey) {
-    if (speciesKey != null) {
-      SpeciesService service = getSpeciesService();
-      if (service != null) {
-        try {
-          NameUsage nameUsage = service.get(speciesKey);
-          if (nameUsage != null) {
-            return Optional.ofNullable(nameUsage.getHigherClassificationMap())
-              .map(map -> map.keySet().stream().map(IntNode::new).collect(Collectors.toSet()))
-              .orElse(Collections.emptySet());
-          } else {
-            LOG.debug("Taxon key {} not found in species service (possibly invalid or deleted)", speciesKey);
-          }
-        } catch (Exception e) {
-          LOG.warn("Failed to get species data for taxon key {}: {}", speciesKey, e.getMessage());
-        }
-      }
-    }
-    return Collections.emptySet();
-  }
-
-  /**
-   * Lazy initialization of SpeciesService to avoid auth errors during startup
-   */
-  private SpeciesService getSpeciesService() {
-    if (speciesService == null && conf.getGbifApi() != null && conf.getGbifApi().getUrl() != null) {
-      try {
-        speciesService = SpeciesService.wsClient(conf.getGbifApi().getUrl());
-        LOG.info("GBIF Species service initialized");
-      } catch (Exception e) {
-        LOG.warn("Failed to initialize GBIF Species service: {}", e.getMessage());
-        speciesService = null;
+      esClient.indices().delete(new DeleteIndexRequest.Builder().index(esIdxName).build());
+      if (!rollupIdxNames.isEmpty()) {
+        esClient.indices().delete(new DeleteIndexRequest.Builder().index(rollupIdxNames).build());
       }
+    } finally {
+      documentEnricher.close();
     }
-    return speciesService;
-  }
-
-  /**
-   * If the value appears in the list of conf.mendeley.controlledTags[controlledTermName] it is added to terms.
-   */
-  private boolean addIfIsControlledTerm(String controlledTermName, String value, Set<TextNode> terms) {
-    Optional<String> controlledTermValue = conf.getMendeley().getControlledTags().get(controlledTermName).stream()
-                                            .filter(controlledTerm -> controlledTerm.equalsIgnoreCase(value))
-                                            .findAny();
-    controlledTermValue.ifPresent(matchTerm -> terms.add(TextNode.valueOf(matchTerm.replace(' ', '_').toUpperCase())));
-    return controlledTermValue.isPresent();
   }
 
   /**
@@ -488,48 +266,113 @@ public class ElasticSearchIndexHandler implements ResponseHandler {
   }
 
   /**
-   * Transforms all the fields' names from lower_underscore to lowerCame.
+   * Transforms all the fields' names from lower_underscore to lowerCamel.
+   * The top-level fields are replaced in the document, nested values are transformed by {@link #toCamelCased(JsonNode)}
+   * because they are shared with other handlers.
    */
-  private static void toCamelCasedFields(JsonNode root) {
+  private static void toCamelCasedFields(ObjectNode root) {
     Map<String,JsonNode> nodes = Maps.toMap(root.fieldNames(), root::get);
     nodes.forEach((fieldName, nodeValue) -> {
-      normalizeName(root, nodeValue, fieldName);
-      if (nodeValue.isObject()) {
-        toCamelCasedFields(nodeValue);
-      } else if (nodeValue.isArray()) {
-        nodeValue.elements().forEachRemaining(ElasticSearchIndexHandler::toCamelCasedFields);
+      String newName = normalizeName(fieldName);
+      root.set(newName, toCamelCased(nodeValue));
+      if (!newName.equals(fieldName)) {
+        root.remove(fieldName);
       }
     });
   }
 
+  /**
+   * Copy-on-write transformation of the field names of a node: objects and arrays are copied only if some name
+   * changes in their subtree, otherwise the same instance is returned.
+   */
+  private static JsonNode toCamelCased(JsonNode node) {
+    boolean changed = false;
+    if (node.isObject()) {
+      Map<String,JsonNode> fields = new LinkedHashMap<>();
+      for (Iterator<Map.Entry<String,JsonNode>> it = node.fields(); it.hasNext();) {
+        Map.Entry<String,JsonNode> field = it.next();
+        String newName = normalizeName(field.getKey());
+        JsonNode newValue = toCamelCased(field.getValue());
+        changed |= newValue != field.getValue() || !newName.equals(field.getKey());
+        fields.put(newName, newValue);
+      }
+      if (changed) {
+        ObjectNode camelCased = JsonNodeFactory.instance.objectNode();
+        camelCased.setAll(fields);
+        return camelCased;
+      }
+    } else if (node.isArray()) {
+      List<JsonNode> elements = new ArrayList<>(node.size());
+      for (JsonNode element : node) {
+        JsonNode newElement = toCamelCased(element);
+        changed |= newElement != element;
+        elements.add(newElement);
+      }
+      if (changed) {
+        return JsonNodeFactory.instance.arrayNode(elements.size()).addAll(elements);
+      }
+    }
+    return node;
+  }
+
   /**
    * Changes the name to the lowerCamelCase and replace some field names.
    */
-  private static void normalizeName(JsonNode root, JsonNode nodeValue, String fieldName) {
+  private static String normalizeName(String fieldName) {
     if (fieldName.equals(LAST_MODIFIED)) {
-      replaceNodeName((ObjectNode) root, nodeValue, fieldName, ES_UPDATED_AT_FL);
-    } else {
-      String camelCaseName = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.LOWER_CAMEL, fieldName);
-      if (!camelCaseName.equals(fieldName)) {
-        replaceNodeName((ObjectNode) root, nodeValue, fieldName, camelCaseName);
-      }
+      return ES_UPDATED_AT_FL;
     }
+    return CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.LOWER_CAMEL, fieldName);
   }
 
   /**
-   * Replaces an node name.
+   * Builds a rollup index from the documents accumulated while indexing.
+   * @return name of the new index
    */
-  private static void replaceNodeName(ObjectNode root, JsonNode nodeValue, String fieldName, String newName) {
-    root.set(newName, nodeValue);
-    root.remove(fieldName);
+  private String indexRollup(String suffix, String mappingFile, Map<String, ObjectNode> documents) throws IOException {
+    String rollupIdxName = getEsIndexingIdxName(conf.getMendeley().getIndexBuild().getEsIndexName() + suffix);
+    createIndex(esClient, rollupIdxName, indexMappings(mappingFile));
+    rollupIdxNames.add(rollupIdxName);
+    for (List<Map.Entry<String, ObjectNode>> batch : Iterables.partition(documents.entrySet(), ROLLUP_BATCH_SIZE)) {
+      BulkRequest.Builder bulkRequestBuilder = new BulkRequest.Builder();
+      batch.forEach(document -> bulkRequestBuilder.operations(op -> op
+          .index(idx -> idx
+              .index(rollupIdxName)
+              .id(document.getKey())
+              .document(JsonData.of(document.getValue())))));
+      BulkResponse bulkResponse = esClient.bulk(bulkRequestBuilder.build());
+      if (bulkResponse.errors()) {
+        throw new IllegalStateException("Error indexing " + rollupIdxName + ": "
+                                        + bulkResponse.items().get(0).error().reason());
+      }
+    }
+    LOG.info("Indexed [{}] documents into rollup index [{}]", documents.size(), rollupIdxName);
+    //Rollup indices are small, only the availability settings of the literature profile are used
+    ContentCrawlConfiguration.IndexProfile rollupProfile = new ContentCrawlConfiguration.IndexProfile();
+    rollupProfile.setReplicas(indexProfile.getReplicas());
+    rollupProfile.setWaitForStatus(indexProfile.getWaitForStatus());
+    prepareForServing(esClient, rollupIdxName, conf.getMendeley().getIndexBuild(), rollupProfile);
+    return rollupIdxName;
   }
 
+  /**
+   * Swaps the literature index and its rollup indices to their aliases in a single call.
+   */
   @Override
   public void finish() {
-    swapIndexToAlias(
-        esClient,
-        getEsIdxName(conf.getMendeley().getIndexBuild().getEsIndexName()),
-        esIdxName,
-        conf.getMendeley().getIndexBuild());
+    try {
+      String esIndexName = conf.getMendeley().getIndexBuild().getEsIndexName();
+      prepareForServing(esClient, esIdxName, conf.getMendeley().getIndexBuild(), indexProfile);
+      Map<String, String> rollupAliases = new HashMap<>();
+      rollupAliases.put(getEsIdxName(esIndexName + STATISTICS_SUFFIX),
+                        indexRollup(STATISTICS_SUFFIX, ES_STATISTICS_MAPPING_FILE, statistics.toDocuments()));
+      rollupAliases.put(getEsIdxName(esIndexName + CITATIONS_SUFFIX),
+                        indexRollup(CITATIONS_SUFFIX, ES_CITATIONS_MAPPING_FILE, citationRollups.toDocuments()));
+      swapIndicesToAliases(esClient, Collections.singletonMap(getEsIdxName(esIndexName), esIdxName), rollupAliases);
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      documentEnricher.close();
+    }
   }
 }
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Counts of indexed literature documents per value of the fields used by the portal dashboards.
+ * Each thread updates its own counters, which are merged when the statistics are read.
+ */
+class LiteratureStatistics {
+
+  //Document fields counted, a document counts once per distinct value of each field
+  static final List<String> DIMENSIONS = List.of("countriesOfResearcher", "countriesOfCoverage", "topics",
+                                                 "relevance", "gbifRegion", "year", "peerReview");
+
+  /**
+   * Counters of a single thread.
+   */
+  private static class Counters {
+    private long documents;
+    private final Map<String, Map<String, Long>> counts = new HashMap<>();
+
+    private void add(JsonNode document) {
+      documents++;
+      DIMENSIONS.forEach(dimension -> {
+        JsonNode value = document.get(dimension);
+        if (value != null && !value.isNull()) {
+          Map<String, Long> dimensionCounts = counts.computeIfAbsent(dimension, d -> new HashMap<>());
+          if (value.isArray()) {
+            value.forEach(element -> dimensionCounts.merge(element.asText(), 1L, Long::sum));
+          } else {
+            dimensionCounts.merge(value.asText(), 1L, Long::sum);
+          }
+        }
+      });
+    }
+
+    private void mergeInto(Counters target) {
+      target.documents += documents;
+      counts.forEach((dimension, dimensionCounts) -> {
+        Map<String, Long> targetCounts = target.counts.computeIfAbsent(dimension, d -> new HashMap<>());
+        dimensionCounts.forEach((value, count) -> targetCounts.merge(value, count, Long::sum));
+      });
+    }
+  }
+
+  private final List<Counters> allCounters = new CopyOnWriteArrayList<>();
+
+  private final ThreadLocal<Counters> threadCounters = ThreadLocal.withInitial(() -> {
+    Counters counters = new Counters();
+    allCounters.add(counters);
+    return counters;
+  });
+
+  /**
+   * Counts an indexed document.
+   */
+  void add(JsonNode document) {
+    threadCounters.get().add(document);
+  }
+
+  /**
+   * Merges the counters of all threads, it must be called once all the documents have been counted.
+   * @return one document per dimension, keyed by dimension name
+   */
+  Map<String, ObjectNode> toDocuments() {
+    Counters merged = new Counters();
+    allCounters.forEach(counters -> counters.mergeInto(merged));
+    Map<String, ObjectNode> documents = new HashMap<>();
+    DIMENSIONS.forEach(dimension -> {
+      ObjectNode document = JsonNodeFactory.instance.objectNode();
+      document.put("dimension", dimension);
+      document.put("documents", merged.documents);
+      ArrayNode counts = document.putArray("counts");
+      merged.counts.getOrDefault(dimension, new HashMap<>()).entrySet().stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+        .forEach(count -> counts.addObject().put("key", count.getKey()).put("count", count.getValue()));
+      documents.put(dimension, document);
+    });
+    return documents;
+  }
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.http.client.config.RequestConfig;
@@ -67,8 +68,9 @@ public class MendeleyDocumentCrawler {
 
     try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
       //OAuthJSONAccessTokenResponse token = getToken(config.mendeley);
+      MendeleyPager pager = new MendeleyPager(targetUrl, authToken, requestConfig, httpClient);
       Observable
-              .fromIterable(new MendeleyPager(targetUrl, authToken, requestConfig, httpClient))
+              .fromIterable(pager)
               .retryWhen(errors -> errors
                       .zipWith(Observable.range(1, maxRetries), (err, retryCount) -> {
                         if (isHttpGatewayTimeout(err) && retryCount < maxRetries) {
@@ -95,19 +97,14 @@ public class MendeleyDocumentCrawler {
                 LOG.info("Time elapsed retrieving Mendeley {} minutes ", stopwatch.elapsed(TimeUnit.MINUTES));
                 stopwatch.reset();
                 stopwatch.start();
-                indexFiles();
-                LOG.info("Time elapsed indexing Mendeley {} minutes ", stopwatch.elapsed(TimeUnit.MINUTES));
-                stopwatch.reset();
-                stopwatch.start();
-                registryFiles();
-                LOG.info("Time elapsed updating GBIF Registry {} minutes ", stopwatch.elapsed(TimeUnit.MINUTES));
+                processFiles(pager.getTotalResults().orElse(0));
                 stopwatch.stop();
               })
               .subscribe(
                       responses ->
                               responses.forEach(response -> {
                                 try {
-                                  handler.handleResponse(response);
+                                  handler.handleResponse(new MendeleyResponse(response));
                                 } catch (Exception e) {
                                   LOG.error("Unable to process response", e);
                                   silentRollback(handler);
@@ -125,28 +122,29 @@ public class MendeleyDocumentCrawler {
     return throwable instanceof GatewayTimeoutException;
   }
 
-  private void indexFiles() throws Exception {
-    ElasticSearchIndexHandler elasticSearchIndexHandler = new ElasticSearchIndexHandler(config);
-    try {
-      for (File file : handler.getTargetDir().listFiles()) {
-        elasticSearchIndexHandler.handleResponse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
-      }
-      elasticSearchIndexHandler.finish();
-    } catch (Exception ex) {
-      elasticSearchIndexHandler.rollback();
-    }
-  }
-
-  private void registryFiles() throws Exception {
-    UpdateRegistryHandler updateRegistryHandler = new UpdateRegistryHandler(config);
+  /**
+   * Indexes the crawled files and updates the GBIF Registry, each file is read and parsed once for both handlers.
+   * Handlers run on their own executors, reading files blocks while any of them has a full inbox.
+   * @param expectedDocuments number of documents reported by Mendeley, used to size the index
+   */
+  private void processFiles(long expectedDocuments) throws Exception {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    ComposeHandler composeHandler = new ComposeHandler(config.getMendeley().getHandlerInboxSize(),
+                                                       Arrays.asList(new ElasticSearchIndexHandler(config, expectedDocuments),
+                                                                     new UpdateRegistryHandler(config)));
     try {
       for (File file : handler.getTargetDir().listFiles()) {
-        updateRegistryHandler.handleResponse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        composeHandler.handleResponse(new MendeleyResponse(new String(Files.readAllBytes(file.toPath()),
+                                                                      StandardCharsets.UTF_8)));
       }
-      updateRegistryHandler.finish();
     } catch (Exception ex) {
-      updateRegistryHandler.rollback();
+      LOG.error("Error reading crawled files", ex);
+      composeHandler.rollback();
+      return;
     }
+    composeHandler.finish();
+    LOG.info("Time elapsed indexing Mendeley and updating GBIF Registry {} minutes ",
+             stopwatch.elapsed(TimeUnit.MINUTES));
   }
 
   /**
@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.json.JsonData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import static org.gbif.content.crawl.es.ElasticSearchUtils.buildEsClient;
+import static org.gbif.content.crawl.es.ElasticSearchUtils.getEsIdxName;
+
+/**
+ * Recomputes the GBIF enrichment of literature documents already indexed that cite a set of DOIs or datasets.
+ * Affected documents are located using the gbifDOI and gbifDatasetKey fields of the active literature index and
+ * are updated in place using partial bulk updates, the rest of the index is not touched.
+ * The citation rollups of the datasets, publishers and networks cited before or after the update are recomputed
+ * from the updated index. The statistics rollup only counts fields derived from the document tags, which do not
+ * change, so it is not updated.
+ */
+public class MendeleyDocumentReenricher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MendeleyDocumentReenricher.class);
+
+  /**
+   * Handles a page of search hits.
+   */
+  @FunctionalInterface
+  private interface PageHandler {
+    void handle(List<Hit<ObjectNode>> hits) throws IOException;
+  }
+
+  private final ElasticsearchClient esClient;
+  private final String esIdxName;
+  private final String citationsIdxName;
+  private final int batchSize;
+  private final DocumentEnricher documentEnricher;
+
+  public MendeleyDocumentReenricher(ContentCrawlConfiguration conf) {
+    esClient = buildEsClient(conf.getElasticSearch());
+    String esIndexName = conf.getMendeley().getIndexBuild().getEsIndexName();
+    esIdxName = getEsIdxName(esIndexName);
+    citationsIdxName = getEsIdxName(esIndexName + ElasticSearchIndexHandler.CITATIONS_SUFFIX);
+    batchSize = conf.getMendeley().getIndexBuild().getBatchSize();
+    documentEnricher = new DocumentEnricher(conf);
+  }
+
+  /**
+   * Re-enriches all the documents citing any of the DOIs or datasets.
+   * @return the number of documents updated
+   */
+  public int reenrich(Collection<String> dois, Collection<String> datasetKeys) throws IOException {
+    BoolQuery.Builder query = new BoolQuery.Builder().minimumShouldMatch("1");
+    if (!dois.isEmpty()) {
+      List<FieldValue> doiValues = dois.stream()
+                                    .map(doi -> FieldValue.of(doi.toLowerCase()))
+                                    .collect(Collectors.toList());
+      query.should(s -> s.terms(t -> t.field(DocumentEnricher.ES_GBIF_DOI_FL).terms(v -> v.value(doiValues))));
+    }
+    if (!datasetKeys.isEmpty()) {
+      List<FieldValue> datasetValues = datasetKeys.stream().map(FieldValue::of).collect(Collectors.toList());
+      query.should(s -> s.terms(t -> t.field(DocumentEnricher.ES_GBIF_DATASET_FL).terms(v -> v.value(datasetValues))));
+    }
+
+    List<String> sourceFields = new ArrayList<>(CitationRollups.CITED_FIELDS.keySet());
+    sourceFields.add(DocumentEnricher.ML_ID_FL);
+    sourceFields.add(DocumentEnricher.ML_TAGS_FL);
+
+    //Keys cited before or after the update, by enriched field
+    Map<String, Set<String>> citedKeys = new HashMap<>();
+    AtomicInteger updated = new AtomicInteger();
+    scan(query.build(), sourceFields, hits -> updated.addAndGet(update(hits, citedKeys)));
+    LOG.info("Re-enriched {} documents of index {}", updated.get(), esIdxName);
+    refreshCitationRollups(citedKeys);
+    return updated.get();
+  }
+
+  /**
+   * Pages through the documents matching a query, sorted by id and using search_after.
+   */
+  private void scan(BoolQuery query, List<String> sourceFields, PageHandler pageHandler) throws IOException {
+    List<FieldValue> searchAfter = null;
+    while (true) {
+      SearchRequest.Builder searchRequest = new SearchRequest.Builder()
+        .index(esIdxName)
+        .query(q -> q.bool(query))
+        .size(batchSize)
+        .sort(so -> so.field(f -> f.field(DocumentEnricher.ML_ID_FL).order(SortOrder.Asc)))
+        .source(s -> s.filter(f -> f.includes(sourceFields)));
+      if (searchAfter != null) {
+        searchRequest.searchAfter(searchAfter);
+      }
+      SearchResponse<ObjectNode> searchResponse = esClient.search(searchRequest.build(), ObjectNode.class);
+      List<Hit<ObjectNode>> hits = searchResponse.hits().hits();
+      if (hits.isEmpty()) {
+        break;
+      }
+      pageHandler.handle(hits);
+      if (hits.size() < batchSize) {
+        break;
+      }
+      searchAfter = hits.get(hits.size() - 1).sort();
+    }
+  }
+
+  /**
+   * Releases the clients used by the enricher.
+   */
+  public void close() {
+    documentEnricher.close();
+  }
+
+  /**
+   * Collects the keys of the cited fields of a document.
+   */
+  private static void collectCitedKeys(JsonNode document, Map<String, Set<String>> citedKeys) {
+    CitationRollups.CITED_FIELDS.keySet().forEach(field -> {
+      JsonNode keys = document.get(field);
+      if (keys != null && keys.isArray()) {
+        keys.forEach(key -> citedKeys.computeIfAbsent(field, k -> new HashSet<>()).add(key.asText()));
+      }
+    });
+  }
+
+  /**
+   * Recomputes the enrichment of a page of hits and applies it as partial updates.
+   */
+  private int update(List<Hit<ObjectNode>> hits, Map<String, Set<String>> citedKeys) throws IOException {
+    List<ObjectNode> documents = hits.stream()
+                                  .map(Hit::source)
+                                  .filter(Objects::nonNull)
+                                  .map(source -> {
+                                    collectCitedKeys(source, citedKeys);
+                                    ObjectNode document = JsonNodeFactory.instance.objectNode();
+                                    document.set(DocumentEnricher.ML_ID_FL, source.get(DocumentEnricher.ML_ID_FL));
+                                    document.set(DocumentEnricher.ML_TAGS_FL, source.get(DocumentEnricher.ML_TAGS_FL));
+                                    return document;
+                                  })
+                                  .collect(Collectors.toList());
+    documentEnricher.prefetchDatasets(documents);
+    BulkRequest.Builder bulkRequestBuilder = new BulkRequest.Builder();
+    documents.forEach(document -> {
+      String id = document.get(DocumentEnricher.ML_ID_FL).asText();
+      documentEnricher.enrich(document);
+      collectCitedKeys(document, citedKeys);
+      //only the enriched fields are sent
+      document.remove(DocumentEnricher.ML_ID_FL);
+      document.remove(DocumentEnricher.ML_TAGS_FL);
+      bulkRequestBuilder.operations(op -> op
+        .update(u -> u
+          .index(esIdxName)
+          .id(id)
+          .action(a -> a.doc(JsonData.of(document)))));
+    });
+    return execute(bulkRequestBuilder.build(), "Error updating");
+  }
+
+  /**
+   * Recomputes the citation rollups of the cited keys from the documents of the literature index that cite them.
+   * Rollups of keys no longer cited are deleted.
+   */
+  private void refreshCitationRollups(Map<String, Set<String>> citedKeys) throws IOException {
+    if (citedKeys.isEmpty()) {
+      return;
+    }
+    //makes the partial updates visible to the search
+    esClient.indices().refresh(r -> r.index(esIdxName));
+
+    BoolQuery.Builder query = new BoolQuery.Builder().minimumShouldMatch("1");
+    citedKeys.forEach((field, keys) -> {
+      List<FieldValue> values = keys.stream().map(FieldValue::of).collect(Collectors.toList());
+      query.should(s -> s.terms(t -> t.field(field).terms(v -> v.value(values))));
+    });
+    List<String> sourceFields = new ArrayList<>(CitationRollups.CITED_FIELDS.keySet());
+    sourceFields.add(CitationRollups.ID_FL);
+    sourceFields.add(CitationRollups.YEAR_FL);
+    sourceFields.add(CitationRollups.RELEVANCE_FL);
+    CitationRollups citationRollups = new CitationRollups();
+    scan(query.build(), sourceFields, hits -> hits.stream()
+                                                .map(Hit::source)
+                                                .filter(Objects::nonNull)
+                                                .forEach(citationRollups::add));
+    Map<String, ObjectNode> rollups = citationRollups.toDocuments();
+
+    List<String> rollupIds = citedKeys.entrySet().stream()
+                              .flatMap(keys -> keys.getValue().stream()
+                                                .map(key -> CitationRollups.rollupId(keys.getKey(), key)))
+                              .collect(Collectors.toList());
+    int refreshed = 0;
+    for (List<String> batch : Lists.partition(rollupIds, batchSize)) {
+      BulkRequest.Builder bulkRequestBuilder = new BulkRequest.Builder();
+      batch.forEach(rollupId -> {
+        ObjectNode rollup = rollups.get(rollupId);
+        if (rollup != null) {
+          bulkRequestBuilder.operations(op -> op
+            .index(idx -> idx.index(citationsIdxName).id(rollupId).document(JsonData.of(rollup))));
+        } else {
+          bulkRequestBuilder.operations(op -> op.delete(d -> d.index(citationsIdxName).id(rollupId)));
+        }
+      });
+      refreshed += execute(bulkRequestBuilder.build(), "Error refreshing citation rollups");
+    }
+    LOG.info("Refreshed {} citation rollups of index {}", refreshed, citationsIdxName);
+  }
+
+  /**
+   * Executes a bulk request logging the first error found.
+   * @return the number of successful operations
+   */
+  private int execute(BulkRequest bulkRequest, String errorMessage) throws IOException {
+    BulkResponse bulkResponse = esClient.bulk(bulkRequest);
+    if (bulkResponse.errors()) {
+      LOG.error("{}.  First error message: {}", errorMessage, bulkResponse.items().stream()
+        .filter(item -> item.error() != null)
+        .findFirst()
+        .map(item -> item.error().reason())
+        .orElse(null));
+    }
+    return (int) bulkResponse.items().stream().filter(item -> item.error() == null).count();
+  }
+}
@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.regex.Pattern;
 
 import org.apache.http.HttpResponse;
@@ -50,6 +51,9 @@ public class MendeleyPager implements Iterable<String> {
   private final RequestConfig requestConfig;
   private final CloseableHttpClient httpClient;
 
+  //Total results reported by Mendeley, -1 until the first page is retrieved
+  private volatile long totalResults = -1;
+
   /**
    * Fll constructor.
    * @param targetUrl Mendeley API url
@@ -119,7 +123,10 @@ public class MendeleyPager implements Iterable<String> {
 
                 // Useful logging for production operation
                 Optional.ofNullable(httpResponse.getFirstHeader("Mendeley-Count"))
-                  .ifPresent(totalResults -> LOG.info("Mendeley reports total results: {}", totalResults.getValue()));
+                  .ifPresent(count -> {
+                    LOG.info("Mendeley reports total results: {}", count.getValue());
+                    totalResults = Long.parseLong(count.getValue().trim());
+                  });
                 nextUrl = nextPageFromHeaders(httpResponse);
                 return EntityUtils.toString(httpResponse.getEntity(), StandardCharsets.UTF_8.name());
               } catch (IOException ex) {
@@ -130,6 +137,13 @@ public class MendeleyPager implements Iterable<String> {
     }
   }
 
+  /**
+   * Total results reported by Mendeley, if at least a page has been retrieved.
+   */
+  public OptionalLong getTotalResults() {
+    return totalResults < 0 ? OptionalLong.empty() : OptionalLong.of(totalResults);
+  }
+
   @Override
   public Iterator<String> iterator() {
     return new MendeleyIterator();
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.kohsuke.MetaInfServices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * The CLI options for re-enriching the indexed literature documents that cite changed DOIs or datasets.
+ */
+@Command(name = "mendeley-reenrich",
+  description = "Recompute the GBIF enrichment and citation rollups of indexed literature citing the given DOIs or datasets")
+@MetaInfServices(Callable.class)
+public class MendeleyReenrichCommand implements Callable<Integer> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MendeleyReenrichCommand.class);
+
+  @Option(names = {"-c", "--config"}, description = "Configuration file path", required = true)
+  private String configFile;
+
+  @Option(names = {"--doi"}, split = ",", description = "Changed DOIs, comma separated")
+  private List<String> dois = new ArrayList<>();
+
+  @Option(names = {"--dataset"}, split = ",", description = "Changed dataset keys, comma separated")
+  private List<String> datasetKeys = new ArrayList<>();
+
+  @Override
+  public Integer call() {
+    if (dois.isEmpty() && datasetKeys.isEmpty()) {
+      LOG.error("At least one DOI or dataset key must be provided");
+      return 1;
+    }
+    try {
+      ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+      ContentCrawlConfiguration configuration = mapper.readValue(new File(configFile), ContentCrawlConfiguration.class);
+
+      LOG.info("Re-enriching literature citing DOIs {} and datasets {}", dois, datasetKeys);
+      MendeleyDocumentReenricher reenricher = new MendeleyDocumentReenricher(configuration);
+      try {
+        reenricher.reenrich(dois, datasetKeys);
+      } finally {
+        reenricher.close();
+      }
+      return 0;
+    } catch (IOException e) {
+      LOG.error("Error contacting remote endpoints", e);
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A page of documents returned by Mendeley.
+ * The JSON response is parsed at most once and the resulting documents are shared by all response handlers.
+ */
+public class MendeleyResponse {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final String json;
+
+  private final Supplier<List<JsonNode>> documents;
+
+  /**
+   * Creates a response from its raw JSON content, parsing is deferred until the documents are requested.
+   * @param json Mendeley response
+   */
+  public MendeleyResponse(String json) {
+    this.json = json;
+    documents = Suppliers.memoize(() -> parse(json));
+  }
+
+  /**
+   * Parses the array of documents of the response.
+   */
+  private static List<JsonNode> parse(String json) {
+    try {
+      JsonNode root = MAPPER.readTree(json);
+      return root == null ? Collections.emptyList() : ImmutableList.copyOf(root.elements());
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Raw JSON content of the response.
+   */
+  public String getJson() {
+    return json;
+  }
+
+  /**
+   * Documents of this response. These are shared between handlers and must not be modified,
+   * use {@link #mutableCopy(JsonNode)} to get a modifiable version.
+   */
+  public List<JsonNode> getDocuments() {
+    return documents.get();
+  }
+
+  /**
+   * Shallow copy of a shared document: top-level fields can be added, replaced or removed without affecting other
+   * handlers, but nested objects and arrays are still shared and must be replaced, not modified in place.
+   */
+  public static ObjectNode mutableCopy(JsonNode document) {
+    ObjectNode copy = JsonNodeFactory.instance.objectNode();
+    copy.setAll((ObjectNode) document);
+    return copy;
+  }
+}
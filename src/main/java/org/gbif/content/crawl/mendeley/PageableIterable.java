@@ -16,49 +16,171 @@ package org.gbif.content.crawl.mendeley;
 import org.gbif.api.model.common.paging.PagingRequest;
 import org.gbif.api.model.common.paging.PagingResponse;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Utility class to iterate through a generic pageable service.
+ * Optionally, the following pages are requested concurrently while the current one is consumed.
  */
 public class PageableIterable<T> implements Iterable<PagingResponse<T>> {
 
-  private static final int PAGE_SIZE = 50;
+  private static final int DEFAULT_PAGE_SIZE = 50;
+  private static final int ORDERED_NONNULL = Spliterator.ORDERED | Spliterator.NONNULL;
+
   private final Function<PagingRequest,PagingResponse<T>> dataSupplier;
+  private final int pageSize;
+  //Executor and number of pages requested ahead, no prefetching if executor is null
+  private final Executor prefetchExecutor;
+  private final int prefetchPages;
 
-  private PageableIterable(Function<PagingRequest,PagingResponse<T>> dataSupplier) {
+  private PageableIterable(Function<PagingRequest,PagingResponse<T>> dataSupplier, int pageSize,
+                           Executor prefetchExecutor, int prefetchPages) {
     this.dataSupplier = dataSupplier;
+    this.pageSize = pageSize;
+    this.prefetchExecutor = prefetchExecutor;
+    this.prefetchPages = prefetchPages;
   }
 
   private class PageableIterator implements Iterator<PagingResponse<T>> {
 
+    //Pages requested and not consumed yet, in offset order
+    private final Deque<CompletableFuture<PagingResponse<T>>> pages = new ArrayDeque<>();
+    private long nextOffset;
+    private boolean endOfRecords;
     private PagingResponse<T> response;
-    private PagingRequest pagingRequest = new PagingRequest(0, PAGE_SIZE);
+
+    private void fill() {
+      int maxPages = prefetchExecutor == null ? 1 : prefetchPages + 1;
+      while (!endOfRecords && pages.size() < maxPages) {
+        PagingRequest pagingRequest = new PagingRequest(nextOffset, pageSize);
+        pages.add(prefetchExecutor == null
+                    ? CompletableFuture.completedFuture(dataSupplier.apply(pagingRequest))
+                    : CompletableFuture.supplyAsync(() -> dataSupplier.apply(pagingRequest), prefetchExecutor));
+        nextOffset += pageSize;
+      }
+    }
 
     @Override
     public boolean hasNext() {
-      if (response == null || !response.isEndOfRecords()) {
-        response = dataSupplier.apply(pagingRequest);
-        return Boolean.TRUE;
+      if (response == null && !endOfRecords) {
+        fill();
+        response = pages.poll().join();
+        if (response.isEndOfRecords()) {
+          //pages requested beyond the last one are discarded
+          endOfRecords = true;
+          pages.forEach(page -> page.cancel(true));
+          pages.clear();
+        }
       }
-      return Boolean.FALSE;
+      return response != null;
     }
 
     @Override
     public PagingResponse<T> next() {
-      pagingRequest.setOffset(pagingRequest.getOffset() + PAGE_SIZE);
-      return response;
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      PagingResponse<T> next = response;
+      response = null;
+      return next;
     }
   }
 
+  /**
+   * Spliterator over the elements of all pages, each split hands over the page being consumed as prefix.
+   */
+  private class ResultsSpliterator implements Spliterator<T> {
+
+    private final Iterator<PagingResponse<T>> pages = iterator();
+    private Spliterator<T> current = Spliterators.emptySpliterator();
+
+    private Spliterator<T> nextPage() {
+      synchronized (pages) {
+        return pages.hasNext() ? results(pages.next()) : null;
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      while (!current.tryAdvance(action)) {
+        Spliterator<T> page = nextPage();
+        if (page == null) {
+          return false;
+        }
+        current = page;
+      }
+      return true;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      if (current.estimateSize() == 0) {
+        Spliterator<T> page = nextPage();
+        if (page == null) {
+          return null;
+        }
+        current = page;
+      }
+      //the remaining elements of the current page precede the following pages
+      Spliterator<T> prefix = current;
+      current = Spliterators.emptySpliterator();
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED_NONNULL;
+    }
+  }
+
+  private static <R> Spliterator<R> results(PagingResponse<R> page) {
+    List<R> results = page.getResults();
+    return results == null ? Spliterators.emptySpliterator()
+                           : Spliterators.spliterator(results, ORDERED_NONNULL);
+  }
+
   @Override
   public Iterator<PagingResponse<T>> iterator() {
     return new PageableIterator();
   }
 
+  /**
+   * Stream of the elements of all pages, parallel streams process pages concurrently.
+   */
+  public Stream<T> stream(boolean parallel) {
+    return StreamSupport.stream(new ResultsSpliterator(), parallel);
+  }
+
+  /**
+   * Copy of this iterable that requests up to prefetchPages pages ahead using the executor.
+   */
+  public PageableIterable<T> withPrefetch(Executor executor, int prefetchPages) {
+    return new PageableIterable<>(dataSupplier, pageSize, executor, prefetchPages);
+  }
+
   public static <P> PageableIterable<P>of(Function<PagingRequest,PagingResponse<P>> supplier) {
-    return new PageableIterable<>(supplier);
+    return of(supplier, DEFAULT_PAGE_SIZE);
+  }
+
+  public static <P> PageableIterable<P>of(Function<PagingRequest,PagingResponse<P>> supplier, int pageSize) {
+    return new PageableIterable<>(supplier, pageSize, null, 0);
   }
 
 }
@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import org.gbif.api.model.occurrence.Download;
+import org.gbif.api.model.registry.Dataset;
+import org.gbif.api.model.registry.Network;
+import org.gbif.api.model.registry.Organization;
+import org.gbif.api.service.registry.DatasetService;
+import org.gbif.api.service.registry.OccurrenceDownloadService;
+import org.gbif.api.service.registry.OrganizationService;
+import org.gbif.api.vocabulary.Country;
+import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
+import org.gbif.registry.ws.client.DatasetClient;
+import org.gbif.registry.ws.client.OccurrenceDownloadClient;
+import org.gbif.registry.ws.client.OrganizationClient;
+import org.gbif.ws.client.ClientBuilder;
+import org.gbif.ws.json.JacksonJsonObjectMapperProvider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Resolves and caches dataset usages of a GBIF DOI using the GBIF Registry API.
+ * Used when no registry database is configured, the dataset usages of large downloads are requested in pages
+ * fetched ahead of their consumption by the prefetch executor.
+ */
+class RegistryCitationSource implements CitationSource {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RegistryCitationSource.class);
+
+  private final DatasetService datasetService;
+  private final OccurrenceDownloadService occurrenceDownloadService;
+  private final OrganizationService organizationService;
+  private final int pageSize;
+  private final int prefetchPages;
+  private final ExecutorService prefetchExecutor;
+
+  //Caches citations by DOI
+  private final Cache<String, Collection<DatasetUsagesCollector.DatasetCitation>> cache;
+
+  //Caches publisher and networks by dataset key, used as template of the citations of a dataset
+  private final Cache<UUID, DatasetUsagesCollector.DatasetCitation> datasets;
+
+  //Caches publisher countries by organization key
+  private final Cache<UUID, Optional<String>> organizationCountries;
+
+  RegistryCitationSource(ContentCrawlConfiguration.GbifApi gbifApiConf) {
+    ObjectMapper objectMapper = JacksonJsonObjectMapperProvider.getObjectMapperWithBuilderSupport();
+    objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    ClientBuilder clientBuilder = new ClientBuilder()
+                                    .withUrl(gbifApiConf.getUrl())
+                                    .withObjectMapper(objectMapper);
+    datasetService = clientBuilder.build(DatasetClient.class);
+    occurrenceDownloadService = clientBuilder.build(OccurrenceDownloadClient.class);
+    organizationService = clientBuilder.build(OrganizationClient.class);
+    pageSize = gbifApiConf.getCitationPageSize();
+    prefetchPages = gbifApiConf.getCitationPrefetchPages();
+    prefetchExecutor = Executors.newFixedThreadPool(gbifApiConf.getCitationThreads(),
+                                                    new ThreadFactoryBuilder()
+                                                      .setNameFormat("registry-citations-%d")
+                                                      .setDaemon(true)
+                                                      .build());
+    cache = new Cache2kBuilder<String, Collection<DatasetUsagesCollector.DatasetCitation>>(){}
+              .loader(this::loadCitations)
+              .build();
+    datasets = new Cache2kBuilder<UUID, DatasetUsagesCollector.DatasetCitation>(){}
+                 .loader(this::loadDataset)
+                 .build();
+    organizationCountries = new Cache2kBuilder<UUID, Optional<String>>(){}
+                              .loader(this::loadOrganizationCountry)
+                              .build();
+  }
+
+  /**
+   * Cache loader function, a DOI can identify a download or datasets.
+   */
+  private Collection<DatasetUsagesCollector.DatasetCitation> loadCitations(String doi) {
+    List<DatasetUsagesCollector.DatasetCitation> citations = new ArrayList<>();
+    getDownload(doi).ifPresent(download -> {
+      List<DatasetUsagesCollector.DatasetCitation> usages =
+        RegistryIterables.ofDatasetUsages(occurrenceDownloadService, download.getKey(), pageSize)
+          .withPrefetch(prefetchExecutor, prefetchPages)
+          .stream(false)
+          .map(usage -> datasets.get(usage.getDatasetKey()).toBuilder()
+                          .downloadKey(download.getKey())
+                          .eraseAfter(download.getEraseAfter())
+                          .build())
+          .collect(Collectors.toList());
+      if (usages.isEmpty()) {
+        citations.add(DatasetUsagesCollector.DatasetCitation.builder()
+                        .downloadKey(download.getKey())
+                        .eraseAfter(download.getEraseAfter())
+                        .build());
+      } else {
+        citations.addAll(usages);
+      }
+    });
+    RegistryIterables.ofListByDoi(datasetService, doi, pageSize)
+      .stream(false)
+      .map(dataset -> datasets.get(dataset.getKey()))
+      .forEach(citations::add);
+    LOG.debug("DOI {} has {} datasets/downloads", doi, citations.size());
+    return citations;
+  }
+
+  /**
+   * Gets the download identified by a DOI, if any.
+   */
+  private Optional<Download> getDownload(String doi) {
+    try {
+      return Optional.ofNullable(occurrenceDownloadService.get(doi));
+    } catch (Exception ex) {
+      LOG.debug("DOI {} is not a download: {}", doi, ex.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Loads the publisher and networks of a dataset.
+   */
+  private DatasetUsagesCollector.DatasetCitation loadDataset(UUID datasetKey) {
+    Dataset dataset = datasetService.get(datasetKey);
+    UUID publishingOrganizationKey = dataset == null ? null : dataset.getPublishingOrganizationKey();
+    return DatasetUsagesCollector.DatasetCitation.builder()
+      .datasetKey(datasetKey.toString())
+      .publishingOrganizationKey(Optional.ofNullable(publishingOrganizationKey).map(UUID::toString).orElse(null))
+      .publishingCountry(Optional.ofNullable(publishingOrganizationKey)
+                           .flatMap(organizationCountries::get)
+                           .orElse(null))
+      .networkKeys(datasetService.listNetworks(datasetKey).stream()
+                     .filter(network -> network.getDeleted() == null)
+                     .map(Network::getKey)
+                     .toArray(UUID[]::new))
+      .build();
+  }
+
+  /**
+   * Loads the ISO code of the country of an organization.
+   */
+  private Optional<String> loadOrganizationCountry(UUID organizationKey) {
+    return Optional.ofNullable(organizationService.get(organizationKey))
+      .map(Organization::getCountry)
+      .map(Country::getIso2LetterCode);
+  }
+
+  @Override
+  public Collection<DatasetUsagesCollector.DatasetCitation> getCitations(String doi) {
+    return cache.get(doi);
+  }
+
+  /**
+   * Derived datasets are not exposed through the registry services used by this class.
+   */
+  @Override
+  public boolean isDerivedDataset(String doi) {
+    return false;
+  }
+}
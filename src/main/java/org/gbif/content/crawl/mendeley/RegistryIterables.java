@@ -36,6 +36,13 @@ public class RegistryIterables {
     return PageableIterable.of( pagingRequest ->  service.listByDOI(doi, pagingRequest));
   }
 
+  /**
+   * Iterates thru all datasets associated to a DOI using pages of pageSize elements.
+   */
+  public static PageableIterable<Dataset> ofListByDoi(DatasetService service, String doi, int pageSize) {
+    return PageableIterable.of( pagingRequest ->  service.listByDOI(doi, pagingRequest), pageSize);
+  }
+
   /**
    * Iterates thru all datasets usages of a download key.
    */
@@ -43,4 +50,13 @@ public class RegistryIterables {
                                                                                  String downloadKey) {
     return PageableIterable.of( pagingRequest ->  service.listDatasetUsages(downloadKey, pagingRequest));
   }
+
+  /**
+   * Iterates thru all datasets usages of a download key using pages of pageSize elements.
+   */
+  public static PageableIterable<DatasetOccurrenceDownloadUsage> ofDatasetUsages(OccurrenceDownloadService service,
+                                                                                 String downloadKey,
+                                                                                 int pageSize) {
+    return PageableIterable.of( pagingRequest ->  service.listDatasetUsages(downloadKey, pagingRequest), pageSize);
+  }
 }
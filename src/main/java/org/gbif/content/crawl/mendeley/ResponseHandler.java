@@ -15,9 +15,10 @@ package org.gbif.content.crawl.mendeley;
 
 /**
  * A simple definition for handling of responses to allow them to be chained.
+ * Responses are parsed once and shared by all handlers, see {@link MendeleyResponse}.
  */
 interface ResponseHandler {
-  void handleResponse(String responseAsJson) throws Exception;
+  void handleResponse(MendeleyResponse response) throws Exception;
   void finish() throws Exception;
   void rollback() throws Exception;
 }
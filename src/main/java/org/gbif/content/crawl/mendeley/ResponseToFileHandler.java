@@ -42,11 +42,11 @@ public class ResponseToFileHandler implements ResponseHandler {
   }
 
   @Override
-  public void handleResponse(String responseAsJson) throws Exception {
+  public void handleResponse(MendeleyResponse response) throws Exception {
     File targetFile = new File(targetDir, "page_" + pageNumber + ".response.json");
     try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(targetFile),
                                                                 StandardCharsets.UTF_8.name()))) {
-      out.write(responseAsJson);
+      out.write(response.getJson());
     }
     pageNumber += 1;
   }
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.content.crawl.mendeley;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local ledger of download DOIs whose downloads are already marked for indefinite retention.
+ * Retention is permanent, so DOIs in the ledger don't have to be checked again in later crawls.
+ * The ledger is persisted as a sorted text file containing one DOI per line.
+ */
+class RetentionLedger {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RetentionLedger.class);
+
+  private final Path ledgerFile;
+
+  private final NavigableSet<String> retainedDois = new ConcurrentSkipListSet<>();
+
+  private int loadedEntries;
+
+  /**
+   * Creates a ledger backed by a file, loading its content if the file exists.
+   * @param ledgerFile file that stores the ledger
+   */
+  RetentionLedger(Path ledgerFile) {
+    this.ledgerFile = ledgerFile;
+    if (Files.exists(ledgerFile)) {
+      try (BufferedReader reader = Files.newBufferedReader(ledgerFile, StandardCharsets.UTF_8)) {
+        reader.lines().map(String::trim).filter(line -> !line.isEmpty()).forEach(retainedDois::add);
+      } catch (IOException ex) {
+        LOG.warn("Error reading retention ledger {}, all DOIs will be checked: {}", ledgerFile, ex.getMessage());
+        retainedDois.clear();
+      }
+    }
+    loadedEntries = retainedDois.size();
+    LOG.info("Retention ledger {} loaded with {} DOIs", ledgerFile, loadedEntries);
+  }
+
+  /**
+   * Are all the downloads of this DOI already retained?
+   */
+  boolean contains(String doi) {
+    return retainedDois.contains(doi);
+  }
+
+  /**
+   * Records a DOI whose downloads are all retained.
+   */
+  void add(String doi) {
+    retainedDois.add(doi);
+  }
+
+  /**
+   * Number of DOIs in the ledger.
+   */
+  int size() {
+    return retainedDois.size();
+  }
+
+  /**
+   * Writes the ledger to a temporary file that replaces the previous version.
+   */
+  void save() {
+    if (retainedDois.size() == loadedEntries) {
+      LOG.debug("Retention ledger has not changed");
+      return;
+    }
+    try {
+      Path parent = ledgerFile.toAbsolutePath().getParent();
+      Files.createDirectories(parent);
+      Path tmpFile = Files.createTempFile(parent, ledgerFile.getFileName().toString(), ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+        for (String doi : retainedDois) {
+          writer.write(doi);
+          writer.newLine();
+        }
+      }
+      Files.move(tmpFile, ledgerFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      LOG.info("Retention ledger {} saved with {} DOIs, {} new", ledgerFile, retainedDois.size(),
+               retainedDois.size() - loadedEntries);
+      loadedEntries = retainedDois.size();
+    } catch (IOException ex) {
+      LOG.error("Error saving retention ledger {}", ledgerFile, ex);
+    }
+  }
+}
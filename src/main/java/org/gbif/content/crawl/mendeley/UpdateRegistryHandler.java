@@ -20,21 +20,36 @@ import org.gbif.registry.ws.client.OccurrenceDownloadClient;
 import org.gbif.ws.client.ClientBuilder;
 import org.gbif.ws.json.JacksonJsonObjectMapperProvider;
 
-import java.io.IOException;
+import java.io.File;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Parses the documents from the response and marks cited GBIF downloads for indefinite retention.
+ * Cited downloads are collected across all responses and updated concurrently when the crawl finishes.
+ * DOIs whose downloads are known to be retained from previous crawls are skipped using a {@link RetentionLedger}.
  */
 public class UpdateRegistryHandler implements ResponseHandler {
 
@@ -47,84 +62,134 @@ public class UpdateRegistryHandler implements ResponseHandler {
     Pattern.compile(GBIF_DOWNLOAD_DOI_TAG+"10.15468/dl.", Pattern.LITERAL | Pattern.CASE_INSENSITIVE);
 
   private static final Logger LOG = LoggerFactory.getLogger(UpdateRegistryHandler.class);
-  private static final ObjectMapper MAPPER = new ObjectMapper()
-      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  //Base delay between retries of a failed download update
+  private static final long RETRY_DELAY_MS = 1000;
+
+  //Number of download keys updated per statement in the database retention mode
+  private static final int DB_BATCH_SIZE = 1000;
+
+  //Default file name of the retention ledger, stored in the crawl target directory
+  private static final String LEDGER_FILE = "retained_downloads.ledger";
+
+  /**
+   * Outcome of marking a download for retention.
+   */
+  private enum RetentionResult {
+    RETAINED, ALREADY_RETAINED, NOT_FOUND, FAILED
+  }
 
   private final OccurrenceDownloadService occurrenceDownloadService;
   private final DatasetUsagesCollector datasetUsagesCollector;
+  //Resolves the downloads cited through a DOI, null if the registry update is disabled
+  private final Function<String, Collection<DatasetUsagesCollector.DownloadCitation>> downloadCitations;
+  private final ContentCrawlConfiguration.GbifApi gbifApiConf;
+  private final ContentCrawlConfiguration.RetentionMode retentionMode;
+
+  //Cited downloads pending to be retained, download key to the first citing document
+  private final Map<String, String> pendingDownloads = new ConcurrentHashMap<>();
+
+  //DOIs of the pending downloads, download key to DOI
+  private final Map<String, String> pendingDownloadDois = new ConcurrentHashMap<>();
+
+  //DOIs skipped because they are in the ledger
+  private final Set<String> ledgerDois = ConcurrentHashMap.newKeySet();
+
+  private final RetentionLedger retentionLedger;
+
+  //Cited downloads already marked for retention
+  private final Set<String> retainedDownloads = ConcurrentHashMap.newKeySet();
 
   public UpdateRegistryHandler(ContentCrawlConfiguration conf) {
-    if (conf.getGbifApi() == null) {
+    gbifApiConf = conf.getGbifApi();
+    Map<String,String> dbConfigMap = conf.getMendeley().getDbConfig();
+    retentionMode = conf.getMendeley().getRetentionMode();
+    boolean databaseMode = ContentCrawlConfiguration.RetentionMode.DATABASE == retentionMode
+                           && dbConfigMap != null && !dbConfigMap.isEmpty();
+    if (!databaseMode && conf.getGbifApi() == null) {
       LOG.warn("No GBIF API configuration found, registry update disabled");
       occurrenceDownloadService = null;
       datasetUsagesCollector = null;
+      downloadCitations = null;
+      retentionLedger = null;
       return;
     }
-    
-    LOG.info("Connecting to GBIF API {} as {}", conf.getGbifApi().getUrl(), conf.getGbifApi().getUsername());
-    
-    // Configure ObjectMapper to ignore unknown properties
-    ObjectMapper objectMapper = JacksonJsonObjectMapperProvider.getObjectMapperWithBuilderSupport();
-    objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-    
-    ClientBuilder clientBuilder = new ClientBuilder()
-                                    .withUrl(conf.getGbifApi().getUrl())
-                                    .withObjectMapper(objectMapper)
-                                    .withCredentials(conf.getGbifApi().getUsername(), conf.getGbifApi().getPassword());
-    occurrenceDownloadService = clientBuilder.build(OccurrenceDownloadClient.class);
-
-    Properties dbConfig = new Properties();
-    dbConfig.putAll(conf.getMendeley().getDbConfig());
-    datasetUsagesCollector = new DatasetUsagesCollector(dbConfig);
+
+    if (databaseMode) {
+      LOG.info("Cited downloads will be retained directly in the registry database");
+      occurrenceDownloadService = null;
+    } else {
+      LOG.info("Connecting to GBIF API {} as {}", conf.getGbifApi().getUrl(), conf.getGbifApi().getUsername());
+
+      // Configure ObjectMapper to ignore unknown properties
+      ObjectMapper objectMapper = JacksonJsonObjectMapperProvider.getObjectMapperWithBuilderSupport();
+      objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+      ClientBuilder clientBuilder = new ClientBuilder()
+                                      .withUrl(conf.getGbifApi().getUrl())
+                                      .withObjectMapper(objectMapper)
+                                      .withCredentials(conf.getGbifApi().getUsername(), conf.getGbifApi().getPassword());
+      occurrenceDownloadService = clientBuilder.build(OccurrenceDownloadClient.class);
+    }
+
+    if (dbConfigMap != null && !dbConfigMap.isEmpty()) {
+      Properties dbConfig = new Properties();
+      dbConfig.putAll(dbConfigMap);
+      datasetUsagesCollector = new DatasetUsagesCollector(dbConfig);
+      downloadCitations = datasetUsagesCollector::getDownloadCitations;
+    } else {
+      LOG.info("No registry database configured, cited downloads will be resolved through the GBIF API");
+      datasetUsagesCollector = null;
+      downloadCitations = this::getDownloadCitationsFromApi;
+    }
+
+    retentionLedger = new RetentionLedger(Optional.ofNullable(conf.getMendeley().getRetentionLedger())
+                                            .orElseGet(() -> new File(conf.getMendeley().getTargetDir(), LEDGER_FILE))
+                                            .toPath());
   }
 
   /**
-   * Removes the erase after date on all cited downloads.
-   * @param responseAsJson To load.
+   * Collects the cited downloads that have to be retained, updates are applied in {@link #finish()}.
+   * @param response To load.
    */
   @Override
-  public void handleResponse(String responseAsJson) {
-    if (occurrenceDownloadService == null || datasetUsagesCollector == null) {
+  public void handleResponse(MendeleyResponse response) {
+    if (downloadCitations == null) {
       LOG.debug("Registry update disabled - no GBIF API configuration");
       return;
     }
     
     //process each Json node
-    Iterable<JsonNode> iterable = () -> {
-      try {
-        return MAPPER.readTree(responseAsJson).elements();
-      } catch (IOException ex) {
-        throw new RuntimeException(ex);
-      }
-    };
-
-    iterable.forEach(document -> {
+    response.getDocuments().forEach(document -> {
       try {
         if (document.has(ML_TAGS_FL)) {
           document.get(ML_TAGS_FL).elements().forEachRemaining(node -> {
             String value = node.textValue();
             if (value.startsWith(GBIF_DOWNLOAD_DOI_TAG_PATTERN.pattern())) {
               String keyValue = value.replace(GBIF_DOWNLOAD_DOI_TAG, "").toLowerCase(Locale.ENGLISH);
-              Collection<DatasetUsagesCollector.DownloadCitation> citations = datasetUsagesCollector.getDownloadCitations(keyValue);
+              if (retentionLedger.contains(keyValue)) {
+                LOG.trace("DOI {} found in the retention ledger", keyValue);
+                ledgerDois.add(keyValue);
+                return;
+              }
+              Collection<DatasetUsagesCollector.DownloadCitation> citations = downloadCitations.apply(keyValue);
               if (citations.isEmpty()) {
                 LOG.warn("Document ID {} has an unknown DOI {}", document.get(ML_ID_FL), keyValue);
               } else {
+                boolean allRetained = true;
                 for (DatasetUsagesCollector.DownloadCitation citation : citations) {
-                  if (!(citation.getEraseAfter() == null)) {
-                    Download download = occurrenceDownloadService.get(citation.getDownloadKey());
-                    if (download != null) {
-                      LOG.info("Setting download {} ({}) to be retained due to citation by {}",
-                               download.getKey(),
-                               download.getDoi(),
-                               document.get(ML_ID_FL));
-                      download.setEraseAfter(null);
-                      occurrenceDownloadService.update(download);
-                      citation.setEraseAfter(null);
-                    }
+                  if (citation.getEraseAfter() != null) {
+                    pendingDownloads.putIfAbsent(citation.getDownloadKey(), document.get(ML_ID_FL).asText());
+                    pendingDownloadDois.putIfAbsent(citation.getDownloadKey(), keyValue);
+                    allRetained = false;
                   } else {
                     LOG.trace("Download {} already marked for retention", citation.getDownloadKey());
+                    retainedDownloads.add(citation.getDownloadKey());
                   }
                 }
+                if (allRetained) {
+                  retentionLedger.add(keyValue);
+                }
               }
             }
           });
@@ -137,11 +202,159 @@ public class UpdateRegistryHandler implements ResponseHandler {
     });
   }
 
+  /**
+   * Gets the download identified by a DOI through the GBIF API, empty if the DOI is not a download.
+   */
+  private Collection<DatasetUsagesCollector.DownloadCitation> getDownloadCitationsFromApi(String doi) {
+    try {
+      return Optional.ofNullable(occurrenceDownloadService.get(doi))
+        .map(download -> Collections.singleton(DatasetUsagesCollector.DownloadCitation.builder()
+                                                 .downloadKey(download.getKey())
+                                                 .eraseAfter(download.getEraseAfter())
+                                                 .build()))
+        .orElse(Collections.emptySet());
+    } catch (Exception ex) {
+      LOG.debug("DOI {} is not a download: {}", doi, ex.getMessage());
+      return Collections.emptySet();
+    }
+  }
+
+  /**
+   * Marks a download for retention, retrying failed calls to the GBIF API.
+   */
+  private RetentionResult retain(String downloadKey, String documentId, RateLimiter rateLimiter) {
+    int maxRetries = gbifApiConf.getRegistryUpdateRetries();
+    for (int attempt = 1; attempt <= maxRetries; attempt++) {
+      try {
+        rateLimiter.acquire();
+        Download download = occurrenceDownloadService.get(downloadKey);
+        if (download == null) {
+          LOG.warn("Download {} cited by {} not found", downloadKey, documentId);
+          return RetentionResult.NOT_FOUND;
+        }
+        if (download.getEraseAfter() == null) {
+          return RetentionResult.ALREADY_RETAINED;
+        }
+        LOG.info("Setting download {} ({}) to be retained due to citation by {}",
+                 download.getKey(),
+                 download.getDoi(),
+                 documentId);
+        download.setEraseAfter(null);
+        rateLimiter.acquire();
+        occurrenceDownloadService.update(download);
+        return RetentionResult.RETAINED;
+      } catch (Exception ex) {
+        LOG.warn("Attempt {} of {} to retain download {} failed: {}", attempt, maxRetries, downloadKey, ex.getMessage());
+        if (attempt < maxRetries) {
+          try {
+            TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MS * attempt);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return RetentionResult.FAILED;
+          }
+        }
+      }
+    }
+    LOG.error("Unable to retain download {} cited by {}", downloadKey, documentId);
+    return RetentionResult.FAILED;
+  }
+
   @Override
   public void rollback() {
+    pendingDownloads.clear();
+    pendingDownloadDois.clear();
   }
 
+  /**
+   * Applies the retention of all collected downloads, through the GBIF API or directly in the registry database.
+   * DOIs whose downloads were all retained are recorded in the retention ledger.
+   */
   @Override
   public void finish() {
+    if (downloadCitations == null) {
+      return;
+    }
+    if (pendingDownloads.isEmpty()) {
+      LOG.info("Downloads already retained: {}, DOIs skipped by the ledger: {}, no new downloads to retain",
+               retainedDownloads.size(), ledgerDois.size());
+      retentionLedger.save();
+      return;
+    }
+
+    LOG.info("Retaining {} cited downloads", pendingDownloads.size());
+    try {
+      Map<String, RetentionResult> downloadResults = occurrenceDownloadService == null
+        ? retainInDatabase()
+        : retainThroughApi();
+      Map<RetentionResult, Long> results = downloadResults.values().stream()
+        .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+
+      updateLedger(downloadResults);
+
+      LOG.info("Downloads already retained: {}, DOIs skipped by the ledger: {}, newly retained: {}, not found: {}, failed: {}",
+               retainedDownloads.size() + results.getOrDefault(RetentionResult.ALREADY_RETAINED, 0L),
+               ledgerDois.size(),
+               results.getOrDefault(RetentionResult.RETAINED, 0L),
+               results.getOrDefault(RetentionResult.NOT_FOUND, 0L),
+               results.getOrDefault(RetentionResult.FAILED, 0L));
+    } finally {
+      pendingDownloads.clear();
+      pendingDownloadDois.clear();
+    }
+  }
+
+  /**
+   * Clears the erase after date of all pending downloads in a single database transaction.
+   * Every affected download is logged as audit trail.
+   */
+  private Map<String, RetentionResult> retainInDatabase() {
+    Set<String> updatedKeys = datasetUsagesCollector.clearEraseAfter(pendingDownloads.keySet(), DB_BATCH_SIZE);
+    updatedKeys.forEach(downloadKey -> LOG.info("AUDIT: erase_after cleared for download {} ({}) due to citation by {}",
+                                                downloadKey,
+                                                pendingDownloadDois.get(downloadKey),
+                                                pendingDownloads.get(downloadKey)));
+    //downloads not updated had already an empty erase_after date
+    return pendingDownloads.keySet().stream()
+      .collect(Collectors.toMap(Function.identity(),
+                                downloadKey -> updatedKeys.contains(downloadKey) ? RetentionResult.RETAINED
+                                                                                 : RetentionResult.ALREADY_RETAINED));
+  }
+
+  /**
+   * Retains the pending downloads using a bounded and rate-limited pool of workers calling the GBIF API.
+   */
+  private Map<String, RetentionResult> retainThroughApi() {
+    ExecutorService executor = Executors.newFixedThreadPool(gbifApiConf.getRegistryUpdateThreads(),
+                                                            new ThreadFactoryBuilder()
+                                                              .setNameFormat("registry-update-%d")
+                                                              .build());
+    RateLimiter rateLimiter = RateLimiter.create(gbifApiConf.getRegistryUpdateRate());
+    try {
+      Map<String, CompletableFuture<RetentionResult>> updates = pendingDownloads.entrySet().stream()
+        .collect(Collectors.toMap(Map.Entry::getKey,
+                                  download -> CompletableFuture.supplyAsync(() -> retain(download.getKey(),
+                                                                                         download.getValue(),
+                                                                                         rateLimiter),
+                                                                            executor)));
+      return updates.entrySet().stream()
+        .collect(Collectors.toMap(Map.Entry::getKey, update -> update.getValue().join()));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Adds to the ledger the DOIs whose downloads have all been retained.
+   */
+  private void updateLedger(Map<String, RetentionResult> downloadResults) {
+    Set<String> incompleteDois = downloadResults.entrySet().stream()
+      .filter(result -> result.getValue() != RetentionResult.RETAINED
+                        && result.getValue() != RetentionResult.ALREADY_RETAINED)
+      .map(result -> pendingDownloadDois.get(result.getKey()))
+      .collect(Collectors.toSet());
+    pendingDownloadDois.values().stream()
+      .filter(doi -> !incompleteDois.contains(doi))
+      .forEach(retentionLedger::add);
+    retentionLedger.save();
   }
 }
@@ -16,26 +16,37 @@ package org.gbif.content.crawl.mendeley.clients;
 import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
 import org.gbif.content.crawl.es.ElasticSearchUtils;
 
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-import org.cache2k.Cache;
-import org.cache2k.Cache2kBuilder;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOrder;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.core.search.Hit;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import lombok.Builder;
 import lombok.Data;
 import lombok.NonNull;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * Elasticsearch client to get information from project and programme indices.
+ * Both indices are small, so they are loaded entirely and joined in memory into a project to programme acronym map,
+ * which is periodically refreshed.
  */
+@Slf4j
 public class ContentEsClient {
 
   /**
@@ -50,48 +61,35 @@ public class ContentEsClient {
 
   }
 
-  private final ElasticsearchClient esClient;
+  private static final String PROJECT_INDEX = "project";
+  private static final String PROGRAMME_INDEX = "programme";
 
-  private final Cache<String, Optional<ProjectResponse>> cache;
+  private static final int PAGE_SIZE = 500;
 
-  public ContentEsClient(@NonNull ContentCrawlConfiguration configuration) {
-    this.esClient = ElasticSearchUtils.buildEsClient(configuration.getElasticSearch());
-    //Cache2k with loader
-    cache = new Cache2kBuilder<String, Optional<ProjectResponse>>(){}
-      .loader(this::getFromElastic)
-      .eternal(true)
-      .build();
-  }
+  //Keyword field used to page through the indices
+  private static final String ID_FIELD = "id";
 
+  private final ElasticsearchClient esClient;
 
-  private static SearchRequest buildSearchByIdsRequest(String index, String[] fetchFields,String id) {
-    return new SearchRequest.Builder()
-        .size(1) //only one result is expected
-        .source(s -> s.filter(f -> f.includes(Arrays.asList(fetchFields))))
-        .query(q -> q.ids(ids -> ids.values(id)))
-        .index(index)
-        .build();
-  }
+  //Project id to project data, replaced on each refresh
+  private volatile Map<String, ProjectResponse> projects = Collections.emptyMap();
 
-  /**
-   * Queries the programme index to get the programme acronym.
-   */
-  @SneakyThrows
-  private String getProgrammeAcronym(String programmeId) {
-    if (programmeId != null) {
-      SearchRequest searchRequest = buildSearchByIdsRequest("programme", new String[]{"acronym"}, programmeId);
-
-      SearchResponse<Object> searchResponse = esClient.search(searchRequest, Object.class);
-
-      if (searchResponse.hits().total().value() > 0) { //are there results?
-        Map<String, Object> source = (Map<String, Object>) searchResponse.hits().hits().get(0).source();
-        Object acronym = source.get("acronym");
-        if (acronym != null) {// hasAcronym
-          return acronym.toString();
-        }
-      }
+  //Periodic refresh, null if it is disabled
+  private final ScheduledExecutorService scheduler;
+
+  public ContentEsClient(@NonNull ContentCrawlConfiguration configuration) {
+    this.esClient = ElasticSearchUtils.buildEsClient(configuration.getElasticSearch());
+    refresh();
+    int refreshInterval = configuration.getMendeley().getContentRefreshInterval();
+    if (refreshInterval > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                                                                                        .setNameFormat("content-es-refresh-%d")
+                                                                                        .setDaemon(true)
+                                                                                        .build());
+      scheduler.scheduleWithFixedDelay(this::silentRefresh, refreshInterval, refreshInterval, TimeUnit.MINUTES);
+    } else {
+      scheduler = null;
     }
-    return null;
   }
 
   /**
@@ -110,34 +108,88 @@ public class ContentEsClient {
   }
 
   /**
-   * Converts the hit result to a ProjectResponse.
+   * Extracts the acronym from a programme response.
    */
-  private ProjectResponse toProjectResponse(Hit<Object> searchHit) {
-    return ProjectResponse.builder()
-            .identifier(searchHit.id())
-            .programmeAcronym(getProgrammeAcronym(getProgrammeId(searchHit)))
-            .build();
+  private static String getAcronym(Hit<Object> searchHit) {
+    Object acronym = ((Map<String, Object>) searchHit.source()).get("acronym");
+    return acronym != null ? acronym.toString() : null;
   }
 
   /**
-   * Gets or loads the result from the cache.
+   * Gets the project data.
    */
   public Optional<ProjectResponse> get(String projectId) {
-    return cache.get(projectId);
+    return Optional.ofNullable(projects.get(projectId));
+  }
+
+  /**
+   * Reloads the programme and project indices and joins them into the project map.
+   */
+  public void refresh() {
+    Map<String, String> acronyms = new HashMap<>();
+    scan(PROGRAMME_INDEX, "acronym", searchHit -> acronyms.put(searchHit.id(), getAcronym(searchHit)));
+
+    Map<String, ProjectResponse> loadedProjects = new HashMap<>();
+    scan(PROJECT_INDEX, "programme.id",
+         searchHit -> loadedProjects.put(searchHit.id(),
+                                         ProjectResponse.builder()
+                                           .identifier(searchHit.id())
+                                           .programmeAcronym(Optional.ofNullable(getProgrammeId(searchHit))
+                                                               .map(acronyms::get)
+                                                               .orElse(null))
+                                           .build()));
+    projects = Collections.unmodifiableMap(loadedProjects);
+    log.info("Project cache built with {} projects and {} programmes", loadedProjects.size(), acronyms.size());
   }
 
   /**
-   * Tries to load a result form Elasticsearch.
+   * Refreshes the project map keeping the previous data in case of error.
+   */
+  private void silentRefresh() {
+    try {
+      refresh();
+    } catch (Exception ex) {
+      log.warn("Error refreshing project cache, keeping previous data: {}", ex.getMessage());
+    }
+  }
+
+  /**
+   * Stops the periodic refresh.
+   */
+  public void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Pages through all the documents of an index fetching a single field.
+   * Pages are sorted by id and requested using search_after, so the scan is stable and not limited by the
+   * max_result_window of the index.
    */
   @SneakyThrows
-  private Optional<ProjectResponse> getFromElastic(String projectId) {
-    SearchRequest searchRequest = buildSearchByIdsRequest("project", new String[]{"programme.id"}, projectId);
+  private void scan(String index, String fetchField, Consumer<Hit<Object>> consumer) {
+    List<FieldValue> searchAfter = null;
+    while (true) {
+      SearchRequest.Builder searchRequest = new SearchRequest.Builder()
+        .index(index)
+        .size(PAGE_SIZE)
+        .sort(so -> so.field(f -> f.field(ID_FIELD).order(SortOrder.Asc)))
+        .source(s -> s.filter(f -> f.includes(fetchField)));
+      if (searchAfter != null) {
+        searchRequest.searchAfter(searchAfter);
+      }
 
-    SearchResponse<Object> searchResponse = esClient.search(searchRequest, Object.class);
-    if (searchResponse.hits().total().value() > 0) {
-      return Optional.of(toProjectResponse(searchResponse.hits().hits().get(0)));
+      SearchResponse<Object> searchResponse = esClient.search(searchRequest.build(), Object.class);
+      List<Hit<Object>> hits = searchResponse.hits().hits();
+      hits.forEach(consumer);
+
+      // Break if we got fewer results than requested (last page)
+      if (hits.size() < PAGE_SIZE) {
+        break;
+      }
+      searchAfter = hits.get(hits.size() - 1).sort();
     }
-    return Optional.empty();
   }
 
 }
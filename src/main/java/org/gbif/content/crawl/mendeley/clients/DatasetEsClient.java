@@ -16,9 +16,14 @@ package org.gbif.content.crawl.mendeley.clients;
 import org.gbif.content.crawl.conf.ContentCrawlConfiguration;
 import org.gbif.content.crawl.es.ElasticSearchUtils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
@@ -33,6 +38,11 @@ import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
+import com.google.common.collect.Lists;
+
+/**
+ * Elasticsearch client to get project information of datasets, results are cached and read-through.
+ */
 @Slf4j
 public class DatasetEsClient {
 
@@ -48,20 +58,23 @@ public class DatasetEsClient {
 
   private static final int PAGE_SIZE = 500;
 
+  private static final int CACHE_CAPACITY = 20_000;
+
   private final ContentCrawlConfiguration configuration;
 
   private final ElasticsearchClient esClient;
 
   private final ContentEsClient contentEsClient;
-  private final Cache<String, DatasetSearchResponse> cache;
+  //Caches hits and confirmed misses, evicted or unknown entries are loaded from Elasticsearch
+  private final Cache<String, Optional<DatasetSearchResponse>> cache;
 
   public DatasetEsClient(@NonNull ContentCrawlConfiguration configuration) {
     this.configuration = configuration;
     this.esClient = ElasticSearchUtils.buildEsClient(configuration.getMendeley().getDatasetElasticSearch());
-    cache = new Cache2kBuilder<String, DatasetSearchResponse>(){}
+    cache = new Cache2kBuilder<String, Optional<DatasetSearchResponse>>(){}
+      .loader(this::getFromElastic)
       .eternal(true)
-      .entryCapacity(20_000)
-      .permitNullValues(true)
+      .entryCapacity(CACHE_CAPACITY)
       .build();
     this.contentEsClient = new ContentEsClient(configuration);
   }
@@ -100,24 +113,60 @@ public class DatasetEsClient {
             .build();
   }
 
+  /**
+   * Gets or loads the dataset from the cache.
+   */
   public Optional<DatasetSearchResponse> get(String datasetKey) {
-    return Optional.ofNullable(cache.get(datasetKey));
+    return cache.get(datasetKey);
+  }
+
+  /**
+   * Resolves all the dataset keys that are not in the cache using one request per page of keys.
+   * Datasets not found in the index are cached as empty responses, so they are not requested again.
+   */
+  public void prefetch(Collection<String> datasetKeys) {
+    List<String> missingKeys = datasetKeys.stream()
+                                .filter(datasetKey -> !cache.containsKey(datasetKey))
+                                .distinct()
+                                .collect(Collectors.toList());
+    if (!missingKeys.isEmpty()) {
+      log.debug("Loading {} datasets missing in the cache", missingKeys.size());
+      Lists.partition(missingKeys, PAGE_SIZE).forEach(keys -> cache.putAll(getAllFromElastic(keys)));
+    }
+  }
+
+  /**
+   * Cache loader function.
+   */
+  private Optional<DatasetSearchResponse> getFromElastic(String datasetKey) {
+    return getAllFromElastic(Collections.singletonList(datasetKey)).get(datasetKey);
   }
 
+  /**
+   * Loads a set of datasets in a single search request, keys not found are mapped to empty responses.
+   */
   @SneakyThrows
-  private DatasetSearchResponse getFromElastic(String datasetKey) {
+  private Map<String, Optional<DatasetSearchResponse>> getAllFromElastic(List<String> datasetKeys) {
     SearchRequest searchRequest = new SearchRequest.Builder()
       .index(configuration.getMendeley().getDatasetIndex())
-      .query(q -> q.ids(ids -> ids.values(datasetKey)))
-      .size(1)
+      .query(q -> q.ids(ids -> ids.values(new ArrayList<>(datasetKeys))))
+      .size(datasetKeys.size())
       .source(s -> s.filter(f -> f.includes("project.identifier")))
       .build();
-    
+
     SearchResponse<Object> searchResponse = esClient.search(searchRequest, Object.class);
-    if (searchResponse.hits().total().value() > 0) {
-      return toDatasetSearchResponse(searchResponse.hits().hits().get(0));
-    }
-    return null;
+    Map<String, Optional<DatasetSearchResponse>> responses = new HashMap<>();
+    datasetKeys.forEach(datasetKey -> responses.put(datasetKey, Optional.empty()));
+    searchResponse.hits().hits()
+      .forEach(searchHit -> responses.put(searchHit.id(), Optional.of(toDatasetSearchResponse(searchHit))));
+    return responses;
+  }
+
+  /**
+   * Releases the resources used by the project client.
+   */
+  public void close() {
+    contentEsClient.close();
   }
 
   @SneakyThrows
@@ -141,7 +190,7 @@ public class DatasetEsClient {
       }
       
       log.info("Loading {} datasets from {} into the cache", searchResponse.hits().hits().size(), from);
-      searchResponse.hits().hits().forEach(searchHit -> cache.put(searchHit.id(), toDatasetSearchResponse(searchHit)));
+      searchResponse.hits().hits().forEach(searchHit -> cache.put(searchHit.id(), Optional.of(toDatasetSearchResponse(searchHit))));
       
       totalLoaded += searchResponse.hits().hits().size();
       from += searchResponse.hits().hits().size();